@@ -0,0 +1,109 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/*
+ * Decodes image files at the size they are shown rather than at full
+ * resolution.
+ */
+public class BitmapDecoder {
+
+	private static final String MIME_JPEG = "image/jpeg";
+	
+	/*
+	 * Decode a file, subsampled so its width is no smaller than
+	 * reqWidth. JPEGs have no alpha, so they are decoded as RGB_565
+	 * at half the memory of ARGB_8888. Returns null if the file
+	 * cannot be decoded.
+	 */
+	public static Bitmap decodeSampledFile(String path, int reqWidth) {
+		// First read just the image bounds
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+		
+		// Then decode at the reduced size
+		options.inSampleSize = calculateInSampleSize(options.outWidth, reqWidth);
+		if (MIME_JPEG.equals(options.outMimeType)) {
+			options.inPreferredConfig = Bitmap.Config.RGB_565;
+		}
+		options.inJustDecodeBounds = false;
+		return BitmapFactory.decodeFile(path, options);
+	}
+	
+	/*
+	 * Like decodeSampledFile, for an encoded image in a buffer such as
+	 * a slice of a ThumbnailAtlas.
+	 */
+	public static Bitmap decodeSampledBuffer(ByteBuffer buffer, int reqWidth) {
+		// The decoder only takes arrays, so copy out of a mapped buffer
+		byte[] bytes;
+		int offset = 0;
+		int length = buffer.remaining();
+		if (buffer.hasArray()) {
+			bytes = buffer.array();
+			offset = buffer.arrayOffset() + buffer.position();
+		} else {
+			bytes = new byte[length];
+			buffer.duplicate().get(bytes);
+		}
+		
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(bytes, offset, length, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+		
+		options.inSampleSize = calculateInSampleSize(options.outWidth, reqWidth);
+		if (MIME_JPEG.equals(options.outMimeType)) {
+			options.inPreferredConfig = Bitmap.Config.RGB_565;
+		}
+		options.inJustDecodeBounds = false;
+		return BitmapFactory.decodeByteArray(bytes, offset, length, options);
+	}
+	
+	/*
+	 * Read an image file's width and height without decoding its
+	 * pixels. Returns null if the file is not a readable image.
+	 */
+	public static int[] readSize(String path) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+		return new int[] { options.outWidth, options.outHeight };
+	}
+	
+	/*
+	 * Largest power of two that keeps the decoded width at or above
+	 * reqWidth. The decoder rounds other values down to a power of two.
+	 */
+	static int calculateInSampleSize(int width, int reqWidth) {
+		int inSampleSize = 1;
+		if (reqWidth <= 0) return inSampleSize;
+		while (width / (inSampleSize * 2) >= reqWidth) {
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
+	}
+
+}
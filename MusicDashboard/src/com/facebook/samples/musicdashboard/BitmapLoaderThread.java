@@ -0,0 +1,131 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.widget.ImageView;
+
+/*
+ * Decodes song images off the main thread for the GridView. Each image
+ * is decoded once however many views are waiting on it, and attached to
+ * every one of them that is still bound to the song it was requested
+ * for, since views are recycled while scrolling.
+ */
+public class BitmapLoaderThread extends HandlerThread {
+
+	private static final int IMAGE_DECODE = 0;
+	
+	Context context;
+	Handler listenerHandler;
+	Handler handler;
+	
+	// The views waiting on each image URL queued for decoding. Only
+	// accessed on the main thread.
+	HashMap<String, ArrayList<BindRequest>> pending = new HashMap<String, ArrayList<BindRequest>>();
+	
+	public BitmapLoaderThread(String name, Context context, Handler listenerHandler) {
+		super(name, Process.THREAD_PRIORITY_BACKGROUND);
+		
+		this.context = context;
+		this.listenerHandler = listenerHandler;
+	}
+	
+	/*
+	 * Starts the thread and waits for its looper, so images can be
+	 * requested as soon as this returns.
+	 */
+	@Override
+	public synchronized void start() {
+		super.start();
+		handler = new Handler(getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what == IMAGE_DECODE) {
+					// Decode the image into the cache
+					String imageUrl = (String)msg.obj;
+					Bitmap bitmap = ImageCache.getInstance(context).getBitmap(imageUrl);
+					deliver(imageUrl, bitmap);
+				}
+			}
+		};
+	}
+	
+	/*
+	 * Attach a decoded image to the views waiting on it, on the main
+	 * thread.
+	 */
+	void deliver(final String imageUrl, final Bitmap bitmap) {
+		listenerHandler.post(new Runnable() {
+			public void run() {
+				ArrayList<BindRequest> requests = pending.remove(imageUrl);
+				if (bitmap == null || requests == null) return;
+				
+				for (BindRequest request : requests) {
+					// The view may have been recycled for another song
+					if (request.imageView.getTag() == request.song) {
+						request.imageView.setImageDrawable(
+								new BitmapDrawable(context.getResources(), bitmap));
+					}
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Method to initiate decoding a song's image for a view. Must be
+	 * called on the main thread, with the view's tag set to the song.
+	 */
+	public void loadSongImage(Song song, ImageView imageView) {
+		String imageUrl = song.getImageUrl();
+		if (imageUrl == null) return;
+		
+		// Wait on a decode already queued for the same image
+		ArrayList<BindRequest> requests = pending.get(imageUrl);
+		boolean queued = requests != null;
+		if (!queued) {
+			requests = new ArrayList<BindRequest>();
+			pending.put(imageUrl, requests);
+		}
+		requests.add(new BindRequest(song, imageView));
+		if (!queued) {
+			handler.obtainMessage(IMAGE_DECODE, imageUrl).sendToTarget();
+		}
+	}
+	
+	/*
+	 * A view waiting on a song's image, and the song it was bound to.
+	 */
+	private static class BindRequest {
+		final Song song;
+		final ImageView imageView;
+		
+		BindRequest(Song song, ImageView imageView) {
+			this.song = song;
+			this.imageView = imageView;
+		}
+	}
+
+}
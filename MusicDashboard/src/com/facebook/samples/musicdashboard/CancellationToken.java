@@ -0,0 +1,105 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+/*
+ * Cancellation signal for downloads. Connections registered with a token
+ * are disconnected when it is cancelled, which aborts a blocked read.
+ * A child token, such as one per song, is also cancelled with its
+ * parent, such as one per fetch generation.
+ */
+public class CancellationToken {
+
+	private final CancellationToken parent;
+	private final ArrayList<HttpURLConnection> connections = new ArrayList<HttpURLConnection>();
+	private volatile boolean cancelled;
+	
+	/*
+	 * Thrown by a download that stopped because its token was cancelled.
+	 */
+	public static class CancelledException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		public CancelledException() {
+			super("Cancelled");
+		}
+	}
+	
+	public CancellationToken() {
+		this(null);
+	}
+	
+	public CancellationToken(CancellationToken parent) {
+		this.parent = parent;
+	}
+	
+	/*
+	 * Cancel this token and its children, disconnecting their connections.
+	 */
+	public void cancel() {
+		ArrayList<HttpURLConnection> active;
+		synchronized (this) {
+			cancelled = true;
+			active = new ArrayList<HttpURLConnection>(connections);
+			connections.clear();
+		}
+		for (HttpURLConnection connection : active) {
+			connection.disconnect();
+		}
+	}
+	
+	public boolean isCancelled() {
+		return cancelled || (parent != null && parent.isCancelled());
+	}
+	
+	public void throwIfCancelled() throws CancelledException {
+		if (isCancelled()) throw new CancelledException();
+	}
+	
+	/*
+	 * Track a connection so cancelling this token or any of its parents
+	 * aborts it. Throws if the token is already cancelled.
+	 */
+	public void register(HttpURLConnection connection) throws CancelledException {
+		for (CancellationToken token = this; token != null; token = token.parent) {
+			synchronized (token) {
+				token.connections.add(connection);
+			}
+		}
+		// Catch a cancel that raced with registering
+		if (isCancelled()) {
+			unregister(connection);
+			throw new CancelledException();
+		}
+	}
+	
+	/*
+	 * Stop tracking a connection once it is finished with.
+	 */
+	public void unregister(HttpURLConnection connection) {
+		for (CancellationToken token = this; token != null; token = token.parent) {
+			synchronized (token) {
+				token.connections.remove(connection);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import android.os.SystemClock;
+
+/*
+ * Per-host circuit breaker. After repeated failures, or when the host
+ * asks us to back off, requests to it fail fast for a while instead of
+ * each waiting out a timeout. Once that time is up a single trial
+ * request is let through, and its outcome closes or reopens the
+ * circuit.
+ */
+public class CircuitBreaker {
+
+	public static final String TAG = "CircuitBreaker";
+	
+	// Consecutive failures that open the circuit
+	private static final int FAILURE_THRESHOLD = 5;
+	// How long an open circuit fails requests before a trial
+	static final long OPEN_MS = 30 * 1000;
+	
+	private static final int CLOSED = 0;
+	private static final int OPEN = 1;
+	private static final int HALF_OPEN = 2;
+	
+	private static final HashMap<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
+	
+	private final String host;
+	private int state = CLOSED;
+	private int failures;
+	private long openUntil;
+	private boolean trialInFlight;
+	private int openCount;
+	private int rejectedCount;
+	
+	/*
+	 * Thrown instead of making a request while the circuit is open.
+	 */
+	public static class CircuitOpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		public CircuitOpenException(String host) {
+			super("Circuit open for " + host);
+		}
+	}
+	
+	/*
+	 * The breaker for the host of a URL.
+	 */
+	public static CircuitBreaker forUrl(String urlSpec) {
+		String host = HostLimiter.hostOf(urlSpec);
+		synchronized (breakers) {
+			CircuitBreaker breaker = breakers.get(host);
+			if (breaker == null) {
+				breaker = new CircuitBreaker(host);
+				breakers.put(host, breaker);
+			}
+			return breaker;
+		}
+	}
+	
+	/*
+	 * Close every circuit, e.g. when the network comes back.
+	 */
+	public static void resetAll() {
+		synchronized (breakers) {
+			for (CircuitBreaker breaker : breakers.values()) {
+				breaker.reset();
+			}
+		}
+	}
+	
+	private CircuitBreaker(String host) {
+		this.host = host;
+	}
+	
+	/*
+	 * Call before a request. Throws if the circuit is open, or half open
+	 * with its trial request still going.
+	 */
+	public synchronized void checkAllowed() throws CircuitOpenException {
+		if (state == OPEN && SystemClock.elapsedRealtime() >= openUntil) {
+			state = HALF_OPEN;
+			trialInFlight = false;
+		}
+		if (state == OPEN || (state == HALF_OPEN && trialInFlight)) {
+			rejectedCount++;
+			throw new CircuitOpenException(host);
+		}
+		if (state == HALF_OPEN) {
+			trialInFlight = true;
+		}
+	}
+	
+	/*
+	 * The host answered, so close the circuit.
+	 */
+	public synchronized void recordSuccess() {
+		state = CLOSED;
+		failures = 0;
+		trialInFlight = false;
+	}
+	
+	/*
+	 * A request failed. The circuit opens on a failed trial, too many
+	 * failures in a row, or when the host asked us to wait.
+	 */
+	public synchronized void recordFailure(long retryAfterMs) {
+		failures++;
+		if (state == HALF_OPEN || failures >= FAILURE_THRESHOLD || retryAfterMs > 0) {
+			if (state != OPEN) openCount++;
+			state = OPEN;
+			openUntil = SystemClock.elapsedRealtime() + (retryAfterMs > 0 ? retryAfterMs : OPEN_MS);
+		}
+		trialInFlight = false;
+	}
+	
+	/*
+	 * A request was given up without an answer either way.
+	 */
+	public synchronized void recordAbandoned() {
+		trialInFlight = false;
+	}
+	
+	public synchronized void reset() {
+		state = CLOSED;
+		failures = 0;
+		trialInFlight = false;
+	}
+	
+	public synchronized boolean isOpen() {
+		return state == OPEN && SystemClock.elapsedRealtime() < openUntil;
+	}
+	
+	/*
+	 * Number of times the circuit opened.
+	 */
+	public synchronized int getOpenCount() {
+		return openCount;
+	}
+	
+	/*
+	 * Number of requests failed fast while the circuit was open.
+	 */
+	public synchronized int getRejectedCount() {
+		return rejectedCount;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return host + " open=" + isOpen() + " opened=" + openCount + " rejected=" + rejectedCount;
+	}
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.SystemClock;
+
+/*
+ * Shared HTTP connection setup. HttpURLConnection keeps persistent
+ * connections to each host in a pool, but only gets a socket back when
+ * the response has been read to the end and closed without a
+ * disconnect(). Connections opened here get the configured timeouts,
+ * and are handed back with release() so they can be reused.
+ * 
+ * The platform does not say whether a request reused a connection, so
+ * the per-host counts are only estimates, kept by tracking how many
+ * connections were handed back and are still within the keep-alive
+ * period. The platform can close one sooner, e.g. when the server does.
+ * 
+ * Compressed connections ask for gzip themselves rather than leave it
+ * to the platform, which only does so from Gingerbread and hides the
+ * compressed size, so bytes on the wire can be counted against bytes
+ * decoded.
+ */
+public class ConnectionPool {
+
+	public static final String TAG = "ConnectionPool";
+	
+	// How long the platform keeps an idle connection
+	private static final long KEEP_ALIVE_MS = 5 * 60 * 1000;
+	
+	private static ConnectionPool instance;
+	
+	private final int maxConnections;
+	private final int connectTimeout;
+	private final int readTimeout;
+	
+	// Per host, when each idle connection was handed back, oldest first
+	private final HashMap<String, LinkedList<Long>> idle = new HashMap<String, LinkedList<Long>>();
+	private final HashMap<String, int[]> stats = new HashMap<String, int[]>();
+	private static final int STAT_NEW_ESTIMATE = 0;
+	private static final int STAT_REUSED_ESTIMATE = 1;
+	private static final int STAT_DISCARDED = 2;
+	
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String ENCODING_GZIP = "gzip";
+	private static final String ENCODING_IDENTITY = "identity";
+	
+	// Response body bytes as received, and after decompression
+	private final AtomicLong wireBytes = new AtomicLong();
+	private final AtomicLong bodyBytes = new AtomicLong();
+	
+	public static synchronized ConnectionPool getInstance(Context context) {
+		if (instance == null) {
+			instance = new ConnectionPool(context.getApplicationContext());
+		}
+		return instance;
+	}
+	
+	private ConnectionPool(Context context) {
+		Resources r = context.getResources();
+		maxConnections = Math.max(1, r.getInteger(R.integer.http_max_connections));
+		connectTimeout = r.getInteger(R.integer.http_connect_timeout_ms);
+		readTimeout = r.getInteger(R.integer.http_read_timeout_ms);
+		
+		// Read by the platform when it creates its pool, so this is set
+		// before the first connection is made
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", String.valueOf(maxConnections));
+	}
+	
+	/*
+	 * Open a connection for an uncompressed response, such as an image.
+	 */
+	public HttpURLConnection open(String urlSpec) throws IOException {
+		return open(urlSpec, false);
+	}
+	
+	/*
+	 * Open a connection with the configured timeouts, asking for a gzip
+	 * response if compressed is set. Read it with openBody(), and hand 
+	 * it back with release() or abort() when done.
+	 */
+	public HttpURLConnection open(String urlSpec, boolean compressed) throws IOException {
+		URL url = new URL(urlSpec);
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setRequestProperty(HEADER_ACCEPT_ENCODING, compressed ? ENCODING_GZIP : ENCODING_IDENTITY);
+		
+		String host = url.getHost();
+		synchronized (this) {
+			LinkedList<Long> idleForHost = getIdle(host);
+			expire(idleForHost);
+			int[] hostStats = getStats(host);
+			if (idleForHost.isEmpty()) {
+				hostStats[STAT_NEW_ESTIMATE]++;
+			} else {
+				// The most recently returned connection is used first
+				idleForHost.removeLast();
+				hostStats[STAT_REUSED_ESTIMATE]++;
+			}
+		}
+		return connection;
+	}
+	
+	/*
+	 * Get a connection's response body, decompressing it if need be.
+	 * Throws an HttpStatusException for an error response.
+	 */
+	public InputStream openBody(HttpURLConnection connection) throws IOException {
+		if (connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+			throw HttpStatusException.from(connection);
+		}
+		InputStream in = new CountingInputStream(connection.getInputStream(), wireBytes);
+		if (isCompressed(connection)) {
+			in = new GZIPInputStream(in);
+		}
+		return new CountingInputStream(in, bodyBytes);
+	}
+	
+	/*
+	 * Whether a response body is gzipped, in which case its content
+	 * length is the compressed size.
+	 */
+	public static boolean isCompressed(HttpURLConnection connection) {
+		return ENCODING_GZIP.equalsIgnoreCase(connection.getContentEncoding());
+	}
+	
+	/*
+	 * Finish with a connection whose response was read to the end, so
+	 * its socket goes back to the pool.
+	 */
+	public void release(HttpURLConnection connection) {
+		try {
+			// Closing the body, rather than disconnecting, is what hands
+			// the socket back
+			connection.getInputStream().close();
+		} catch (IOException e) {
+			// Error responses and broken streams are not kept
+			abort(connection);
+			return;
+		}
+		String host = connection.getURL().getHost();
+		synchronized (this) {
+			LinkedList<Long> idleForHost = getIdle(host);
+			idleForHost.addLast(SystemClock.elapsedRealtime());
+			while (idleForHost.size() > maxConnections) {
+				idleForHost.removeFirst();
+			}
+		}
+	}
+	
+	/*
+	 * Finish with a connection that failed or was abandoned part way,
+	 * closing its socket.
+	 */
+	public void abort(HttpURLConnection connection) {
+		connection.disconnect();
+		synchronized (this) {
+			getStats(connection.getURL().getHost())[STAT_DISCARDED]++;
+		}
+	}
+	
+	private void expire(LinkedList<Long> idleForHost) {
+		long now = SystemClock.elapsedRealtime();
+		while (!idleForHost.isEmpty() && now - idleForHost.getFirst() > KEEP_ALIVE_MS) {
+			idleForHost.removeFirst();
+		}
+	}
+	
+	private LinkedList<Long> getIdle(String host) {
+		LinkedList<Long> idleForHost = idle.get(host);
+		if (idleForHost == null) {
+			idleForHost = new LinkedList<Long>();
+			idle.put(host, idleForHost);
+		}
+		return idleForHost;
+	}
+	
+	private int[] getStats(String host) {
+		int[] hostStats = stats.get(host);
+		if (hostStats == null) {
+			hostStats = new int[3];
+			stats.put(host, hostStats);
+		}
+		return hostStats;
+	}
+	
+	/*
+	 * Estimated number of connections to a host that needed a new
+	 * connection and handshake. The platform may have dropped a pooled
+	 * connection early, so the true count can be higher.
+	 */
+	public synchronized int getEstimatedNewConnectionCount(String host) {
+		return getStats(host)[STAT_NEW_ESTIMATE];
+	}
+	
+	/*
+	 * Estimated number of connections to a host that reused a pooled
+	 * connection, an upper bound for the same reason.
+	 */
+	public synchronized int getEstimatedReuseCount(String host) {
+		return getStats(host)[STAT_REUSED_ESTIMATE];
+	}
+	
+	/*
+	 * Response body bytes received, compressed or not.
+	 */
+	public long getWireBytes() {
+		return wireBytes.get();
+	}
+	
+	/*
+	 * Response body bytes after decompression.
+	 */
+	public long getBodyBytes() {
+		return bodyBytes.get();
+	}
+	
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("wire=").append(wireBytes.get()).append(" body=").append(bodyBytes.get());
+		for (String host : stats.keySet()) {
+			int[] hostStats = stats.get(host);
+			sb.append(", ").append(host)
+				.append(" estNew=").append(hostStats[STAT_NEW_ESTIMATE])
+				.append(" estReused=").append(hostStats[STAT_REUSED_ESTIMATE])
+				.append(" discarded=").append(hostStats[STAT_DISCARDED]);
+		}
+		return sb.toString();
+	}
+	
+	/*
+	 * Adds the bytes read through it to a counter.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private final AtomicLong count;
+		
+		CountingInputStream(InputStream in, AtomicLong count) {
+			super(in);
+			this.count = count;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) count.incrementAndGet();
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int bytesRead = super.read(buffer, offset, length);
+			if (bytesRead > 0) count.addAndGet(bytesRead);
+			return bytesRead;
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Size-bounded least recently used cache of files in a directory, keyed
+ * by a string such as an image URL. File modification times record use,
+ * so the LRU order survives restarts.
+ */
+public class DiskCache {
+
+	public static final String TAG = "DiskCache";
+	
+	// Suffix for files still being written into the cache directory
+	public static final String TEMP_SUFFIX = ".tmp";
+	
+	private final File directory;
+	private final long maxBytes;
+	private long size;
+	
+	// Cached file names and their sizes, least recently used first
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	
+	private int hitCount;
+	private int missCount;
+	private int evictionCount;
+	
+	public DiskCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		directory.mkdirs();
+		
+		// Rebuild the index from what is on disk, oldest use first
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (File file : files) {
+			if (file.getName().endsWith(TEMP_SUFFIX)) {
+				// Left over from an interrupted download
+				file.delete();
+			} else {
+				entries.put(file.getName(), file.length());
+				size += file.length();
+			}
+		}
+		trimToSize();
+	}
+	
+	/*
+	 * Return the cached file for a key, or null if it is not cached.
+	 */
+	public synchronized File get(String key) {
+		String name = getFileName(key);
+		if (entries.get(name) == null) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		File file = new File(directory, name);
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+	
+	/*
+	 * Where the file for a key lives, whether or not it is cached yet.
+	 */
+	public File getFile(String key) {
+		return new File(directory, getFileName(key));
+	}
+	
+	/*
+	 * Record the file written to getFile(key), evicting older files if
+	 * the cache is now over its size limit.
+	 */
+	public synchronized void put(String key) {
+		File file = getFile(key);
+		if (!file.exists()) return;
+		Long previous = entries.put(file.getName(), file.length());
+		size += file.length() - (previous != null ? previous : 0);
+		trimToSize();
+	}
+	
+	/*
+	 * Remove a key's file, e.g. because it could not be decoded.
+	 */
+	public synchronized void remove(String key) {
+		String name = getFileName(key);
+		Long previous = entries.remove(name);
+		if (previous != null) {
+			size -= previous;
+			new File(directory, name).delete();
+		}
+	}
+	
+	private void trimToSize() {
+		Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while (size > maxBytes && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			new File(directory, eldest.getKey()).delete();
+			size -= eldest.getValue();
+			it.remove();
+			evictionCount++;
+		}
+	}
+	
+	/*
+	 * Hash keys into safe, fixed-length file names.
+	 */
+	static String getFileName(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				name.append(Character.forDigit((b >> 4) & 0xf, 16));
+				name.append(Character.forDigit(b & 0xf, 16));
+			}
+			return name.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(key.hashCode());
+		} catch (UnsupportedEncodingException e) {
+			return Integer.toHexString(key.hashCode());
+		}
+	}
+	
+	public synchronized long size() {
+		return size;
+	}
+	
+	public long maxSize() {
+		return maxBytes;
+	}
+	
+	public synchronized int hitCount() {
+		return hitCount;
+	}
+	
+	public synchronized int missCount() {
+		return missCount;
+	}
+	
+	public synchronized int evictionCount() {
+		return evictionCount;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return TAG + "[size=" + size + "/" + maxBytes + ", files=" + entries.size() 
+				+ ", hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + "]";
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+import org.json.JSONObject;
+
+/*
+ * Graph API responses for benchmarks and offline runs, shaped like
+ * recorded music.listens pages and song objects. Song IDs are numbered
+ * so that any number of distinct listens can be made.
+ */
+public class GraphFixtures {
+
+	public static final String TAG = "GraphFixtures";
+	
+	// Listen times count back a minute at a time from this
+	private static final long NEWEST_LISTEN_TIME = 1343822400000L;
+	
+	/*
+	 * ID of the nth fixture song.
+	 */
+	public static String getSongId(int n) {
+		return String.valueOf(10150000000000000L + n);
+	}
+	
+	/*
+	 * A music.listens page holding listens first to first + count - 1,
+	 * newest first, with a link to the next page if nextUrl is set.
+	 */
+	public static String getListensPage(int first, int count, String nextUrl) {
+		DateFormat timeFormat = MusicFetcher.newListenTimeFormat();
+		StringBuilder sb = new StringBuilder(count * 600 + 200);
+		sb.append("{\"data\":[");
+		for (int i = first; i < first + count; i++) {
+			if (i > first) sb.append(',');
+			String songId = getSongId(i);
+			String startTime = timeFormat.format(new Date(NEWEST_LISTEN_TIME - i * 60000L));
+			sb.append("{\"id\":\"").append(20150000000000000L + i).append('"')
+				.append(",\"from\":{\"name\":\"Fixture User\",\"id\":\"100000000000001\"}")
+				.append(",\"start_time\":\"").append(startTime).append('"')
+				.append(",\"end_time\":\"").append(startTime).append('"')
+				.append(",\"publish_time\":\"").append(startTime).append('"')
+				.append(",\"application\":{\"name\":\"Spotify\",\"namespace\":\"get-spotify\",\"id\":\"174829003346\"}")
+				.append(",\"data\":{\"song\":{\"id\":\"").append(songId).append('"')
+				.append(",\"url\":\"http://open.spotify.com/track/fixture").append(i).append('"')
+				.append(",\"type\":\"music.song\"")
+				.append(",\"title\":\"Fixture Song ").append(i).append("\"}}")
+				.append(",\"type\":\"music.listens\",\"no_feed_story\":false")
+				.append(",\"likes\":{\"count\":0,\"can_like\":true,\"user_likes\":false}")
+				.append(",\"comments\":{\"count\":0,\"can_comment\":true}}");
+		}
+		sb.append("],\"paging\":{");
+		if (nextUrl != null) {
+			sb.append("\"next\":").append(JSONObject.quote(nextUrl));
+		}
+		sb.append("}}");
+		return sb.toString();
+	}
+	
+	/*
+	 * The Graph object for a fixture song, as returned in a multi-ID
+	 * lookup.
+	 */
+	public static String getSongDetail(String songId, String imageUrl) {
+		StringBuilder sb = new StringBuilder(800);
+		sb.append("{\"id\":\"").append(songId).append('"')
+			.append(",\"url\":\"http://open.spotify.com/track/fixture").append(songId).append('"')
+			.append(",\"type\":\"music.song\"")
+			.append(",\"title\":\"Fixture Song ").append(songId).append('"')
+			.append(",\"image\":[{\"url\":").append(JSONObject.quote(imageUrl))
+			.append(",\"width\":300,\"height\":300}]")
+			.append(",\"description\":\"Fixture Musician - Fixture Album\"")
+			.append(",\"site_name\":\"Spotify\"")
+			.append(",\"data\":{\"musician\":[{\"name\":\"Fixture Musician\",\"url\":\"http://open.spotify.com/artist/fixture\"}]")
+			.append(",\"album\":[{\"url\":{\"url\":\"http://open.spotify.com/album/fixture\"}}]}")
+			.append(",\"audio\":[{\"url\":\"http://open.spotify.com/track/fixture").append(songId).append('"')
+			.append(",\"type\":\"audio/vnd.facebook.bridge\"}]")
+			.append(",\"updated_time\":\"2012-08-01T12:00:00+0000\",\"created_time\":\"2012-08-01T12:00:00+0000\"}");
+		return sb.toString();
+	}
+
+}
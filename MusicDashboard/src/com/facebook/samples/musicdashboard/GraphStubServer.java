@@ -0,0 +1,388 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/*
+ * A local stand-in for the parts of the Graph API the app uses, so load
+ * times can be measured without a Facebook account or network. Serves
+ * GraphFixtures music.listens pages, multi-ID song lookups and one image
+ * for every song, with configurable latency, bandwidth and injected
+ * errors. Speaks just enough HTTP/1.1 for HttpURLConnection, including
+ * keep-alive and gzip.
+ */
+public class GraphStubServer {
+
+	public static final String TAG = "GraphStubServer";
+	
+	// A fixed port keeps image URLs stored by earlier runs valid
+	private static final int DEFAULT_PORT = 18080;
+	// Listens per page when the request has no limit, as on the Graph API
+	private static final int DEFAULT_PAGE_SIZE = 25;
+	private static final String IMAGE_PATH = "/images/";
+	private static final String CRLF = "\r\n";
+	
+	private final int listenCount;
+	private final byte[] imageBytes;
+	private final Random random = new Random();
+	
+	private volatile long latencyMs;
+	private volatile long bytesPerSecond;
+	private volatile float errorRate;
+	
+	private ServerSocket serverSocket;
+	private final HashSet<Socket> sockets = new HashSet<Socket>();
+	private volatile boolean running;
+	
+	private final AtomicInteger requestCount = new AtomicInteger();
+	private final AtomicInteger errorCount = new AtomicInteger();
+	private final AtomicInteger rateLimitCount = new AtomicInteger();
+	
+	/*
+	 * A server with listenCount listens in all, serving imageBytes as
+	 * every song's JPEG image.
+	 */
+	public GraphStubServer(int listenCount, byte[] imageBytes) {
+		this.listenCount = listenCount;
+		this.imageBytes = imageBytes;
+	}
+	
+	/*
+	 * Delay before each response is sent.
+	 */
+	public void setLatencyMs(long latencyMs) {
+		this.latencyMs = latencyMs;
+	}
+	
+	/*
+	 * Rate responses are sent at, per connection, or 0 for no limit.
+	 */
+	public void setBytesPerSecond(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+	
+	/*
+	 * Fraction of requests, from 0 to 1, answered with an error: a 503,
+	 * or for Graph requests half the time a rate limit 400, gzipped
+	 * like any other Graph response when the client accepts it.
+	 */
+	public void setErrorRate(float errorRate) {
+		this.errorRate = errorRate;
+	}
+	
+	/*
+	 * Start listening on the loopback interface. Not on the main thread.
+	 */
+	public synchronized void start() throws IOException {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		try {
+			serverSocket.bind(new InetSocketAddress(loopback, DEFAULT_PORT));
+		} catch (IOException e) {
+			// Taken, any port will do
+			serverSocket.close();
+			serverSocket = new ServerSocket(0, 0, loopback);
+		}
+		running = true;
+		
+		final ServerSocket listening = serverSocket;
+		new Thread(TAG) {
+			@Override
+			public void run() {
+				while (running) {
+					try {
+						final Socket socket = listening.accept();
+						track(socket, true);
+						new Thread(TAG + "-connection") {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						}.start();
+					} catch (IOException e) {
+						// Closed by stop()
+						return;
+					}
+				}
+			}
+		}.start();
+	}
+	
+	/*
+	 * The base URL to use in place of MusicFetcher.GRAPH_ENDPOINT.
+	 */
+	public synchronized String getEndpoint() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort();
+	}
+	
+	public synchronized void stop() {
+		running = false;
+		closeQuietly(serverSocket);
+		synchronized (sockets) {
+			for (Socket socket : sockets) {
+				closeQuietly(socket);
+			}
+			sockets.clear();
+		}
+	}
+	
+	private void track(Socket socket, boolean open) {
+		synchronized (sockets) {
+			if (open) {
+				sockets.add(socket);
+			} else {
+				sockets.remove(socket);
+			}
+		}
+	}
+	
+	/*
+	 * Answer requests on a connection until the client closes it.
+	 */
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while (running) {
+				String requestLine = readLine(in);
+				if (requestLine == null || requestLine.length() == 0) break;
+				HashMap<String, String> headers = new HashMap<String, String>();
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					int colon = line.indexOf(':');
+					if (colon > 0) {
+						headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+					}
+				}
+				
+				String[] parts = requestLine.split(" ");
+				if (parts.length < 2) break;
+				respond(out, parts[1], headers);
+				if ("close".equalsIgnoreCase(headers.get("connection"))) break;
+			}
+		} catch (IOException e) {
+			// The client went away
+		} catch (InterruptedException e) {
+			// Stopping
+		} finally {
+			track(socket, false);
+			closeQuietly(socket);
+		}
+	}
+	
+	private void respond(OutputStream out, String target, HashMap<String, String> headers) 
+			throws IOException, InterruptedException {
+		requestCount.incrementAndGet();
+		if (latencyMs > 0) {
+			Thread.sleep(latencyMs);
+		}
+		
+		if (errorRate > 0 && random.nextFloat() < errorRate) {
+			errorCount.incrementAndGet();
+			if (!target.startsWith(IMAGE_PATH) && random.nextBoolean()) {
+				rateLimitCount.incrementAndGet();
+				send(out, 400, "application/json", 
+						"{\"error\":{\"message\":\"(#4) Application request limit reached\",\"type\":\"OAuthException\",\"code\":4}}",
+						headers, "Retry-After: 1" + CRLF);
+				return;
+			}
+			send(out, 503, "application/json", 
+					"{\"error\":{\"message\":\"Injected error\",\"type\":\"OAuthException\",\"code\":2}}",
+					headers, "Retry-After: 1" + CRLF);
+			return;
+		}
+		
+		String path = target;
+		HashMap<String, String> query = new HashMap<String, String>();
+		int questionMark = target.indexOf('?');
+		if (questionMark >= 0) {
+			path = target.substring(0, questionMark);
+			for (String param : target.substring(questionMark + 1).split("&")) {
+				int equals = param.indexOf('=');
+				if (equals > 0) {
+					query.put(param.substring(0, equals), URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+				}
+			}
+		}
+		
+		if (path.equals(MusicFetcher.MUSIC_LISTENS_PATH)) {
+			send(out, 200, "application/json; charset=UTF-8", getListensPage(query), headers, "");
+		} else if (path.equals("/") && query.containsKey("ids")) {
+			send(out, 200, "application/json; charset=UTF-8", getSongDetails(query.get("ids")), headers, "");
+		} else if (path.startsWith(IMAGE_PATH)) {
+			sendBytes(out, 200, "image/jpeg", imageBytes, false, "");
+		} else {
+			send(out, 404, "application/json", 
+					"{\"error\":{\"message\":\"Unknown path\",\"type\":\"GraphMethodException\",\"code\":100}}", 
+					headers, "");
+		}
+	}
+	
+	private String getListensPage(HashMap<String, String> query) {
+		if (query.containsKey("since")) {
+			// Every fixture listen is older than what a refresh asks for
+			return GraphFixtures.getListensPage(0, 0, null);
+		}
+		int offset = parseInt(query.get("offset"), 0);
+		int limit = parseInt(query.get("limit"), DEFAULT_PAGE_SIZE);
+		int count = Math.max(0, Math.min(limit, listenCount - offset));
+		String next = null;
+		if (offset + count < listenCount) {
+			next = getEndpoint() + MusicFetcher.MUSIC_LISTENS_PATH + "?offset=" + (offset + count) 
+					+ "&limit=" + limit + "&access_token=replay";
+		}
+		return GraphFixtures.getListensPage(offset, count, next);
+	}
+	
+	private String getSongDetails(String ids) {
+		StringBuilder sb = new StringBuilder("{");
+		for (String id : ids.split(",")) {
+			if (sb.length() > 1) sb.append(',');
+			sb.append(JSONObject.quote(id)).append(':')
+				.append(GraphFixtures.getSongDetail(id, getEndpoint() + IMAGE_PATH + id + ".jpg"));
+		}
+		return sb.append('}').toString();
+	}
+	
+	private void send(OutputStream out, int status, String contentType, String body, 
+			HashMap<String, String> headers, String extraHeaders) throws IOException, InterruptedException {
+		String acceptEncoding = headers.get("accept-encoding");
+		boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+		byte[] bytes = body.getBytes("UTF-8");
+		if (gzip) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+			GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+			gzipOut.write(bytes);
+			gzipOut.close();
+			bytes = compressed.toByteArray();
+		}
+		sendBytes(out, status, contentType, bytes, gzip, extraHeaders);
+	}
+	
+	private void sendBytes(OutputStream out, int status, String contentType, byte[] body, boolean gzip, 
+			String extraHeaders) throws IOException, InterruptedException {
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(status).append(status < 400 ? " OK" : " Error").append(CRLF)
+			.append("Content-Type: ").append(contentType).append(CRLF)
+			.append("Content-Length: ").append(body.length).append(CRLF)
+			.append("Connection: keep-alive").append(CRLF);
+		if (gzip) {
+			head.append("Content-Encoding: gzip").append(CRLF);
+		}
+		head.append(extraHeaders).append(CRLF);
+		out.write(head.toString().getBytes("US-ASCII"));
+		
+		// Send in slices, pausing between them to hold the bandwidth
+		long rate = bytesPerSecond;
+		int slice = rate > 0 ? (int)Math.max(1, Math.min(body.length, rate / 10)) : body.length;
+		for (int offset = 0; offset < body.length; offset += slice) {
+			int length = Math.min(slice, body.length - offset);
+			out.write(body, offset, length);
+			if (rate > 0) {
+				out.flush();
+				Thread.sleep(length * 1000L / rate);
+			}
+		}
+		out.flush();
+	}
+	
+	/*
+	 * Read a CRLF terminated line, or null at the end of the stream.
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int length = sb.length();
+				if (length > 0 && sb.charAt(length - 1) == '\r') {
+					sb.setLength(length - 1);
+				}
+				return sb.toString();
+			}
+			sb.append((char)c);
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+	
+	private static int parseInt(String value, int defaultValue) {
+		if (value == null) return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	private static void closeQuietly(ServerSocket socket) {
+		try {
+			if (socket != null) socket.close();
+		} catch (IOException e) {
+			Log.i(TAG, "Could not close server socket", e);
+		}
+	}
+	
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Already gone
+		}
+	}
+	
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+	
+	public int getErrorCount() {
+		return errorCount.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "requests=" + requestCount.get() + " errors=" + errorCount.get() 
+				+ " rateLimits=" + rateLimitCount.get();
+	}
+	
+	/*
+	 * Number of rate limit errors sent.
+	 */
+	public int getRateLimitCount() {
+		return rateLimitCount.get();
+	}
+
+}
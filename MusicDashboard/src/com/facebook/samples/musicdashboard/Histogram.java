@@ -0,0 +1,111 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock-free histogram of non-negative values, such as latencies in
+ * microseconds or queue depths, in power-of-two buckets. Recording is
+ * a few atomic adds, so it can sit on hot paths. Percentiles are read
+ * to the upper bound of their bucket.
+ */
+public class Histogram {
+
+	// Bucket n holds values below 2^n, bucket 0 holds zero
+	private static final int BUCKETS = 40;
+	
+	private final String name;
+	private final String unit;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	public Histogram(String name, String unit) {
+		this.name = name;
+		this.unit = unit;
+	}
+	
+	public void record(long value) {
+		if (value < 0) value = 0;
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+		counts.incrementAndGet(bucket);
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long currentMax;
+		while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+			// Lost a race with another max, try again
+		}
+	}
+	
+	/*
+	 * Record the microseconds since a System.nanoTime() reading.
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getSum() {
+		return sum.get();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	/*
+	 * Upper bound of the bucket holding the given percentile, 0 to 100.
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) return 0;
+		long rank = (long)Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= Math.max(1, rank)) {
+				return Math.min(max.get(), bucket == 0 ? 0 : (1L << bucket) - 1);
+			}
+		}
+		return max.get();
+	}
+	
+	public void reset() {
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			counts.set(bucket, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+	
+	@Override
+	public String toString() {
+		long total = count.get();
+		if (total == 0) return name + " n=0";
+		return name + " n=" + total + " mean=" + (sum.get() / total) + unit 
+				+ " p50=" + getPercentile(50) + unit + " p90=" + getPercentile(90) + unit 
+				+ " p99=" + getPercentile(99) + unit + " max=" + max.get() + unit;
+	}
+
+}
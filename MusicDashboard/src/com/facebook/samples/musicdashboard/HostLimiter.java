@@ -0,0 +1,117 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/*
+ * Caps the number of requests that may be in flight to any one host
+ * at the same time, so a wide worker pool does not hammer a single
+ * server (e.g. graph.facebook.com) with every song at once.
+ */
+public class HostLimiter {
+
+	private final int maxRequestsPerHost;
+	private final HashMap<String, Semaphore> permits = new HashMap<String, Semaphore>();
+	
+	// Permits held by each thread, so they can be handed back while the
+	// thread waits to retry
+	private static final ThreadLocal<ArrayList<Semaphore>> heldPermits = new ThreadLocal<ArrayList<Semaphore>>() {
+		@Override
+		protected ArrayList<Semaphore> initialValue() {
+			return new ArrayList<Semaphore>();
+		}
+	};
+	
+	public HostLimiter(int maxRequestsPerHost) {
+		this.maxRequestsPerHost = Math.max(1, maxRequestsPerHost);
+	}
+	
+	/*
+	 * Blocks until a request to the URL's host may proceed. Returns
+	 * false if the calling thread was interrupted while waiting.
+	 */
+	public boolean acquire(String urlSpec) {
+		try {
+			Semaphore semaphore = getPermits(hostOf(urlSpec));
+			semaphore.acquire();
+			heldPermits.get().add(semaphore);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/*
+	 * Releases a permit taken with acquire().
+	 */
+	public void release(String urlSpec) {
+		Semaphore semaphore = getPermits(hostOf(urlSpec));
+		heldPermits.get().remove(semaphore);
+		semaphore.release();
+	}
+	
+	/*
+	 * Give back the calling thread's permits, e.g. while it sleeps
+	 * before a retry, so other requests to those hosts can go ahead.
+	 * Returns them for resumePermits().
+	 */
+	public static List<Semaphore> suspendPermits() {
+		ArrayList<Semaphore> held = heldPermits.get();
+		ArrayList<Semaphore> suspended = new ArrayList<Semaphore>(held);
+		held.clear();
+		for (Semaphore semaphore : suspended) {
+			semaphore.release();
+		}
+		return suspended;
+	}
+	
+	/*
+	 * Take back permits given up with suspendPermits(). Waits even if
+	 * the thread is interrupted, since the holder still releases them.
+	 */
+	public static void resumePermits(List<Semaphore> suspended) {
+		for (Semaphore semaphore : suspended) {
+			semaphore.acquireUninterruptibly();
+			heldPermits.get().add(semaphore);
+		}
+	}
+	
+	private synchronized Semaphore getPermits(String host) {
+		Semaphore semaphore = permits.get(host);
+		if (semaphore == null) {
+			semaphore = new Semaphore(maxRequestsPerHost, true);
+			permits.put(host, semaphore);
+		}
+		return semaphore;
+	}
+	
+	static String hostOf(String urlSpec) {
+		try {
+			return new URL(urlSpec).getHost();
+		} catch (MalformedURLException e) {
+			return "";
+		}
+	}
+
+}
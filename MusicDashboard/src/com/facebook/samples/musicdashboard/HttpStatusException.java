@@ -0,0 +1,136 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * An HTTP error response. Records whether it is worth trying again,
+ * and how long the server asked to wait first.
+ */
+public class HttpStatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+	
+	private static final String HEADER_RETRY_AFTER = "Retry-After";
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+	// Error bodies are only read this far looking for a Graph error code
+	private static final int MAX_ERROR_BYTES = 16 * 1024;
+	
+	// Graph API error codes for application, user and feature rate limits
+	private static final int[] GRAPH_RATE_LIMIT_CODES = { 4, 17, 341, 613 };
+	
+	private final int statusCode;
+	private final long retryAfterMs;
+	private final boolean rateLimited;
+	
+	public HttpStatusException(int statusCode, long retryAfterMs, boolean rateLimited) {
+		super("HTTP " + statusCode + (rateLimited ? " (rate limited)" : ""));
+		this.statusCode = statusCode;
+		this.retryAfterMs = retryAfterMs;
+		this.rateLimited = rateLimited;
+	}
+	
+	/*
+	 * Build the exception for a connection's error response.
+	 */
+	public static HttpStatusException from(HttpURLConnection connection) throws IOException {
+		int statusCode = connection.getResponseCode();
+		
+		long retryAfterMs = 0;
+		String retryAfter = connection.getHeaderField(HEADER_RETRY_AFTER);
+		if (retryAfter != null) {
+			try {
+				retryAfterMs = Long.parseLong(retryAfter.trim()) * 1000;
+			} catch (NumberFormatException e) {
+				// An HTTP date, fall back to our own backoff
+			}
+		}
+		
+		boolean rateLimited = statusCode == HTTP_TOO_MANY_REQUESTS || isGraphRateLimit(connection);
+		return new HttpStatusException(statusCode, retryAfterMs, rateLimited);
+	}
+	
+	/*
+	 * Whether the error body is a Graph API rate limit error, which
+	 * comes back as a 400 or 403. Graph requests ask for gzip
+	 * themselves, so the platform leaves the error body compressed.
+	 */
+	private static boolean isGraphRateLimit(HttpURLConnection connection) {
+		InputStream in = connection.getErrorStream();
+		if (in == null) return false;
+		try {
+			if (ConnectionPool.isCompressed(connection)) {
+				in = new GZIPInputStream(in);
+			}
+			ResponseBuffer body = new ResponseBuffer(-1);
+			byte[] buffer = new byte[1024];
+			int bytesRead;
+			while (body.size() < MAX_ERROR_BYTES && (bytesRead = in.read(buffer)) != -1) {
+				body.write(buffer, 0, bytesRead);
+			}
+			JSONObject error = new JSONObject(body.toString(MusicFetcher.getCharset(connection.getContentType())))
+					.optJSONObject("error");
+			if (error == null) return false;
+			int code = error.optInt("code");
+			for (int rateLimitCode : GRAPH_RATE_LIMIT_CODES) {
+				if (code == rateLimitCode) return true;
+			}
+		} catch (IOException e) {
+			// No body to go on
+		} catch (JSONException e) {
+			// Not a Graph error
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+		return false;
+	}
+	
+	public int getStatusCode() {
+		return statusCode;
+	}
+	
+	/*
+	 * How long the server asked to wait before trying again, or 0.
+	 */
+	public long getRetryAfterMs() {
+		return retryAfterMs;
+	}
+	
+	public boolean isRateLimited() {
+		return rateLimited;
+	}
+	
+	/*
+	 * Whether the same request may succeed later: rate limits, timeouts
+	 * and server errors. Other client errors will not.
+	 */
+	public boolean isTransient() {
+		return rateLimited || statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT 
+				|| statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/*
+ * Shared cache for song artwork, keyed by image URL. Decoded bitmaps are
+ * kept in a memory LRU bounded by bytes, backed by a size-bounded
+ * ThumbnailAtlas of images shrunk to thumbnail size on disk.
+ */
+public class ImageCache {
+
+	public static final String TAG = "ImageCache";
+	
+	// Directory under the app's cache dir that holds the thumbnail atlas
+	private static final String ATLAS_DIR = "thumbnails";
+	// Directory that held one file per downloaded image in older versions
+	static final String LEGACY_DISK_CACHE_DIR = "artwork";
+	// JPEG quality thumbnails are stored at
+	private static final int THUMBNAIL_QUALITY = 85;
+	// Fraction of the app's memory class given to decoded bitmaps
+	private static final int MEMORY_CACHE_DIVISOR = 8;
+	
+	private static ImageCache instance;
+	
+	private final LruCache<String, Bitmap> memoryCache;
+	private final ThumbnailAtlas atlas;
+	private final File atlasDirectory;
+	// Width song images are decoded for, one GridView column
+	private final int thumbnailWidth;
+	
+	public static synchronized ImageCache getInstance(Context context) {
+		if (instance == null) {
+			instance = new ImageCache(context.getApplicationContext());
+		}
+		return instance;
+	}
+	
+	private ImageCache(Context context) {
+		ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+		int memoryBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_CACHE_DIVISOR;
+		memoryCache = new LruCache<String, Bitmap>(memoryBytes) {
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				return bitmap.getRowBytes() * bitmap.getHeight();
+			}
+		};
+		
+		long diskBytes = context.getResources().getInteger(R.integer.image_cache_disk_size_mb) * 1024L * 1024L;
+		atlasDirectory = new File(context.getCacheDir(), ATLAS_DIR);
+		atlas = new ThumbnailAtlas(atlasDirectory, diskBytes);
+		
+		// A column is at most the screen width split across the columns
+		Resources r = context.getResources();
+		thumbnailWidth = r.getDisplayMetrics().widthPixels / r.getInteger(R.integer.gridview_num_columns);
+	}
+	
+	/*
+	 * Get the bitmap for an image URL from memory, or decode it from
+	 * the thumbnail atlas. Returns null if the image has not been
+	 * downloaded.
+	 */
+	public Bitmap getBitmap(String imageUrl) {
+		Bitmap bitmap = memoryCache.get(imageUrl);
+		if (bitmap != null) return bitmap;
+		
+		ByteBuffer thumbnail = atlas.get(imageUrl);
+		if (thumbnail == null) return null;
+		
+		long start = System.nanoTime();
+		bitmap = BitmapDecoder.decodeSampledBuffer(thumbnail, thumbnailWidth);
+		Metrics.DECODE.recordSince(start);
+		if (bitmap == null) {
+			// Corrupt thumbnail, fetch it again next time
+			Log.i(TAG, "Could not decode cached image: " + imageUrl);
+			atlas.remove(imageUrl);
+			return null;
+		}
+		memoryCache.put(imageUrl, bitmap);
+		return bitmap;
+	}
+	
+	/*
+	 * Get the bitmap for an image URL only if it is already decoded in
+	 * memory. Cheap enough to call on the main thread.
+	 */
+	public Bitmap getMemoryBitmap(String imageUrl) {
+		return memoryCache.get(imageUrl);
+	}
+	
+	/*
+	 * Whether the image for a URL has already been downloaded.
+	 */
+	public boolean hasImage(String imageUrl) {
+		return atlas.contains(imageUrl);
+	}
+	
+	/*
+	 * Width and height of the full image a URL was downloaded from, or
+	 * null if it has not been downloaded.
+	 */
+	public int[] getImageSize(String imageUrl) {
+		ThumbnailAtlas.Entry entry = atlas.getEntry(imageUrl);
+		return entry != null ? new int[] { entry.width, entry.height } : null;
+	}
+	
+	/*
+	 * Where to download the full image for a URL before putImage. It is
+	 * next to the atlas, which deletes any left behind when it opens.
+	 */
+	public File getDownloadFile(String imageUrl) {
+		return new File(atlasDirectory, DiskCache.getFileName(imageUrl) + DiskCache.TEMP_SUFFIX);
+	}
+	
+	/*
+	 * Shrink an image downloaded for a URL to thumbnail size and store
+	 * it in the atlas. The thumbnail is also kept decoded in memory, as
+	 * it is about to be shown. Returns false if the file is not a
+	 * readable image or could not be stored.
+	 */
+	public boolean putImage(String imageUrl, File file) {
+		int[] size = BitmapDecoder.readSize(file.getPath());
+		if (size == null) return false;
+		
+		long start = System.nanoTime();
+		Bitmap bitmap = BitmapDecoder.decodeSampledFile(file.getPath(), thumbnailWidth);
+		Metrics.DECODE.recordSince(start);
+		if (bitmap == null) return false;
+		
+		// Keep transparency for images that have it
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Bitmap.CompressFormat format = bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+		if (!bitmap.compress(format, THUMBNAIL_QUALITY, out)) return false;
+		if (!atlas.put(imageUrl, out.toByteArray(), size[0], size[1])) return false;
+		
+		memoryCache.put(imageUrl, bitmap);
+		return true;
+	}
+	
+	/*
+	 * Drop all decoded bitmaps, e.g. when the system is low on memory.
+	 */
+	public void clearMemory() {
+		memoryCache.evictAll();
+	}
+	
+	/*
+	 * Hit, miss and eviction counts for both tiers.
+	 */
+	public String getStats() {
+		return TAG + "[memory size=" + memoryCache.size() + "/" + memoryCache.maxSize()
+				+ ", hits=" + memoryCache.hitCount() + ", misses=" + memoryCache.missCount()
+				+ ", evictions=" + memoryCache.evictionCount() + "] " + atlas;
+	}
+
+}
@@ -27,7 +27,18 @@ public class LoginActivity extends FragmentActivity {
 	@Override
 	public void onCreate(Bundle savedInstacnce) {
 		super.onCreate(savedInstacnce);
+		StartupTrace.begin();
+		
+		// With a saved session go straight to the gallery, without
+		// inflating the login screen first
+		if (MusicDashboardApplication.restoreSession(this).isSessionValid()) {
+			StartupTrace.mark("session");
+			startActivity(new Intent(this, MusicGalleryActivity.class));
+			finish();
+			return;
+		}
 		setContentView(R.layout.activity_login);
+		StartupTrace.end("login");
 	}
 	
 	@Override
@@ -27,9 +27,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
 
-import com.facebook.android.AsyncFacebookRunner;
 import com.facebook.android.DialogError;
-import com.facebook.android.Facebook;
 import com.facebook.android.Facebook.DialogListener;
 import com.facebook.android.FacebookError;
 
@@ -46,22 +44,13 @@ public class LoginFragment extends Fragment {
 		super.onCreate(savedInstanceState);
 		setRetainInstance(true);
 		
-		// Instantiate the Facebook instance and store it in a class that extends Application
-		MusicDashboardApplication.mFacebook = new Facebook(APP_ID);
-		MusicDashboardApplication.mAsyncRunner = new AsyncFacebookRunner(MusicDashboardApplication.mFacebook);
+		// Set up persistent HTTP connections before anything connects
+		ConnectionPool.getInstance(getActivity());
 		
-		/*
-         * Get existing access_token if any
-         */
+		// Instantiate the Facebook instance, stored in a class that extends
+		// Application, with any existing access_token
+		MusicDashboardApplication.restoreSession(getActivity());
 		mPrefs = PreferenceManager.getDefaultSharedPreferences(getActivity().getApplicationContext());
-        String access_token = mPrefs.getString("access_token", null);
-        long expires = mPrefs.getLong("access_expires", -1);
-        if(access_token != null) {
-        	MusicDashboardApplication.mFacebook.setAccessToken(access_token);
-        }
-        if(expires != -1) {
-        	MusicDashboardApplication.mFacebook.setAccessExpires(expires);
-        }
         
         // If the session is valid redirect MusicGalleryActivity, the logged in activity
         if(MusicDashboardApplication.mFacebook.isSessionValid()) {
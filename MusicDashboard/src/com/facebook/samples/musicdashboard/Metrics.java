@@ -0,0 +1,132 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+/*
+ * Timings for the load path, and a snapshot that gathers them with the
+ * counters kept by the caches, fetcher and connection pool. Snapshots
+ * can be logged periodically while the gallery is showing.
+ */
+public class Metrics {
+
+	public static final String TAG = "Metrics";
+	
+	private static final String US = "us";
+	
+	// Network requests, including retries and waiting on a host's permit
+	public static final Histogram GET_URL = new Histogram("getUrl", US);
+	public static final Histogram DOWNLOAD = new Histogram("downloadUrlToFilePath", US);
+	// Worker tasks, and how long they waited in the queue to start
+	public static final Histogram INFO_TASK = new Histogram("infoTask", US);
+	public static final Histogram IMAGE_TASK = new Histogram("imageTask", US);
+	public static final Histogram QUEUE_WAIT = new Histogram("queueWait", US);
+	public static final Histogram QUEUE_DEPTH = new Histogram("queueDepth", "");
+	// Decoding an image file to a bitmap, and binding a grid cell
+	public static final Histogram DECODE = new Histogram("decode", US);
+	public static final Histogram BIND = new Histogram("bind", US);
+	
+	private static final Histogram[] HISTOGRAMS = {
+		GET_URL, DOWNLOAD, INFO_TASK, IMAGE_TASK, QUEUE_WAIT, QUEUE_DEPTH, DECODE, BIND
+	};
+	
+	private static Handler dumpHandler;
+	private static Runnable dump;
+	
+	// The gallery's song registry and grid invalidator, when it is showing
+	private static volatile SongRegistry songRegistry;
+	private static volatile SongGridInvalidator invalidator;
+	
+	/*
+	 * Include the gallery's counters in snapshots, or stop including
+	 * them if null.
+	 */
+	public static void setGallery(SongRegistry registry, SongGridInvalidator gridInvalidator) {
+		songRegistry = registry;
+		invalidator = gridInvalidator;
+	}
+	
+	/*
+	 * Everything measured so far, one line per source.
+	 */
+	public static String snapshot(Context context) {
+		StringBuilder sb = new StringBuilder();
+		for (Histogram histogram : HISTOGRAMS) {
+			sb.append(histogram).append('\n');
+		}
+		sb.append("responses n=").append(MusicFetcher.getResponseCount())
+			.append(" bytes=").append(MusicFetcher.getResponseBytes())
+			.append(" allocations=").append(MusicFetcher.getResponseAllocations())
+			.append(" coalesced=").append(MusicFetcher.getCoalescedRequestCount())
+			.append(" retries=").append(RetryPolicy.getRetryCount())
+			.append(" rateLimited=").append(RetryPolicy.getRateLimitCount()).append('\n');
+		sb.append("connections ").append(ConnectionPool.getInstance(context)).append('\n');
+		sb.append("responseCache ").append(ResponseCache.getInstance(context)).append('\n');
+		SongRegistry registry = songRegistry;
+		if (registry != null) {
+			sb.append("songs n=").append(registry.size())
+				.append(" duplicates=").append(registry.getDuplicateCount())
+				.append(" savedFetches=").append(registry.getSavedFetchCount()).append('\n');
+		}
+		SongGridInvalidator gridInvalidator = invalidator;
+		if (gridInvalidator != null) {
+			sb.append("grid ").append(gridInvalidator).append('\n');
+		}
+		sb.append(ImageCache.getInstance(context).getStats());
+		return sb.toString();
+	}
+	
+	/*
+	 * Log a snapshot every intervalMs on the main thread until
+	 * stopPeriodicDump(). An interval of 0 or less does nothing.
+	 */
+	public static void startPeriodicDump(final Context context, final long intervalMs) {
+		stopPeriodicDump();
+		if (intervalMs <= 0) return;
+		dumpHandler = new Handler();
+		dump = new Runnable() {
+			public void run() {
+				for (String line : snapshot(context).split("\n")) {
+					Log.i(TAG, line);
+				}
+				dumpHandler.postDelayed(this, intervalMs);
+			}
+		};
+		dumpHandler.postDelayed(dump, intervalMs);
+	}
+	
+	public static void stopPeriodicDump() {
+		if (dumpHandler != null) {
+			dumpHandler.removeCallbacks(dump);
+			dumpHandler = null;
+			dump = null;
+		}
+	}
+	
+	/*
+	 * Start the timings over, e.g. before a benchmark run.
+	 */
+	public static void reset() {
+		for (Histogram histogram : HISTOGRAMS) {
+			histogram.reset();
+		}
+	}
+
+}
@@ -17,6 +17,9 @@
 package com.facebook.samples.musicdashboard;
 
 import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 
 import com.facebook.android.AsyncFacebookRunner;
 import com.facebook.android.Facebook;
@@ -27,5 +30,28 @@ public class MusicDashboardApplication extends Application {
 	// Holds variables that can be used throughout the app
 	public static Facebook mFacebook;
     public static AsyncFacebookRunner mAsyncRunner;
+    
+    /*
+     * Create the Facebook instance and restore the saved session the
+     * first time it is needed, whichever activity the process starts in.
+     */
+    public static synchronized Facebook restoreSession(Context context) {
+    	if (mFacebook == null) {
+    		mFacebook = new Facebook(LoginFragment.APP_ID);
+    		mAsyncRunner = new AsyncFacebookRunner(mFacebook);
+    		
+    		// Get existing access_token if any
+    		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
+    		String access_token = prefs.getString("access_token", null);
+    		long expires = prefs.getLong("access_expires", -1);
+    		if(access_token != null) {
+    			mFacebook.setAccessToken(access_token);
+    		}
+    		if(expires != -1) {
+    			mFacebook.setAccessExpires(expires);
+    		}
+    	}
+    	return mFacebook;
+    }
 
 }
@@ -16,28 +16,40 @@
 
 package com.facebook.samples.musicdashboard;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URLEncoder;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import android.content.Context;
+import android.os.Build;
+import android.text.TextUtils;
 import android.util.Log;
 
 public class MusicFetcher {
 	public static final String TAG = "MusicFetcher";
 	// Graph API endpoint
 	public static final String GRAPH_ENDPOINT = "https://graph.facebook.com";
+	// Most object IDs the Graph API resolves in a single ?ids= request
+	public static final int MAX_IDS_PER_REQUEST = 50;
+	// Graph API path for the user's music listens
+	public static final String MUSIC_LISTENS_PATH = "/me/music.listens";
 
 	private static final String JSON_DATA = "data";
 	private static final String JSON_URL = "url";
@@ -47,34 +59,204 @@ public class MusicFetcher {
     private static final String JSON_MUSICIAN = "musician";
     private static final String JSON_NAME = "name";
     private static final String JSON_AUDIO = "audio";
+    private static final String JSON_WIDTH = "width";
+    private static final String JSON_HEIGHT = "height";
+    private static final String JSON_PAGING = "paging";
+    private static final String JSON_NEXT = "next";
+    private static final String JSON_START_TIME = "start_time";
+    
+    private static final String PARAM_ACCESS_TOKEN = "access_token=";
+    
+    // Graph API timestamps, e.g. 2012-08-20T18:45:10+0000
+    private static final String LISTEN_TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+    
+    private static final String DEFAULT_CHARSET = "UTF-8";
+    private static final String CHARSET_PARAM = "charset=";
+    
+    // Running totals for response bodies read by getUrl
+    private static final AtomicLong responseCount = new AtomicLong();
+    private static final AtomicLong responseBytes = new AtomicLong();
+    private static final AtomicLong responseAllocations = new AtomicLong();
+    
+    // Lookups in flight across all fetchers, so the same song info or
+    // image is never fetched twice at once
+    private static final SingleFlight<String, JSONObject> songInfoRequests = new SingleFlight<String, JSONObject>();
+    private static final SingleFlight<String, Boolean> imageDownloads = new SingleFlight<String, Boolean>();
+    
+    // Set once the image files of older versions are known to be gone
+    private static volatile boolean legacyImagesCleared;
+    
+    // Where Graph API requests go, GRAPH_ENDPOINT unless replaced, e.g.
+    // by a GraphStubServer
+    private static volatile String graphEndpoint = GRAPH_ENDPOINT;
     
 	private Context context;
+	private final CancellationToken cancellationToken;
+	
+	/*
+	 * Callback for songs as they are parsed out of a music.listens
+	 * response. Called on the thread doing the fetch.
+	 */
+	public interface SongParsedListener {
+		public void onSongParsed(Song song);
+	}
 	
 	public MusicFetcher(Context context) {
+		this(context, null);
+	}
+	
+	/*
+	 * A fetcher whose downloads are aborted when the given token is
+	 * cancelled.
+	 */
+	public MusicFetcher(Context context, CancellationToken cancellationToken) {
 		this.context = context;
+		this.cancellationToken = cancellationToken != null ? cancellationToken : new CancellationToken();
+	}
+	
+	public CancellationToken getCancellationToken() {
+		return cancellationToken;
+	}
+	
+	/*
+	 * Send Graph API requests to another endpoint, or back to
+	 * GRAPH_ENDPOINT if null. Applies to requests made after the call.
+	 */
+	public static void setGraphEndpoint(String endpoint) {
+		graphEndpoint = endpoint != null ? endpoint : GRAPH_ENDPOINT;
+	}
+	
+	public static String getGraphEndpoint() {
+		return graphEndpoint;
 	}
 	
 	/*
-	 * Method to get the contents of a URL.
+	 * Whether requests go to the Graph API itself. Song info from any
+	 * other endpoint is test data, and is kept out of the song store.
 	 */
-	String getUrl(String urlSpec) throws IOException {
-		URL url = new URL(urlSpec);
-		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+	private static boolean isGraphApi() {
+		return GRAPH_ENDPOINT.equals(graphEndpoint);
+	}
+	
+	/*
+	 * Method to get the contents of a URL. Requests are made conditional
+	 * when an earlier response is cached, and a 304 is served from it.
+	 * Transient failures are retried.
+	 */
+	String getUrl(final String urlSpec) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return RetryPolicy.execute(urlSpec, cancellationToken, new RetryPolicy.Request<String>() {
+				public String execute() throws IOException {
+					return getUrl(urlSpec, true);
+				}
+			});
+		} finally {
+			Metrics.GET_URL.recordSince(start);
+		}
+	}
+	
+	private String getUrl(String urlSpec, boolean conditional) throws IOException {
+		ConnectionPool connectionPool = ConnectionPool.getInstance(context);
+		HttpURLConnection connection = connectionPool.open(urlSpec, true);
+		ResponseCache responseCache = ResponseCache.getInstance(context);
+		boolean revalidating = conditional && responseCache.addValidators(urlSpec, connection);
 		
 		//Log.i(TAG, "getting URL: " + urlSpec);
 		
+		boolean complete = false;
+		cancellationToken.register(connection);
 		try {
-			InputStream in = connection.getInputStream();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-			String line = null;
-			StringBuilder result = new StringBuilder();
-			while ((line = reader.readLine()) != null) {
-				result.append(line + "\n");
+			if (revalidating && connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				// Unchanged since it was cached
+				complete = true;
+				String cached = responseCache.getBody(urlSpec);
+				if (cached != null) return cached;
+			} else {
+				String body = readBody(urlSpec, connection, connectionPool.openBody(connection), responseCache);
+				complete = true;
+				return body;
 			}
-			return result.toString();
+		} catch (IOException e) {
+			// A disconnect from cancel() surfaces as an ordinary IOException
+			cancellationToken.throwIfCancelled();
+			throw e;
 		} finally {
-			connection.disconnect();
+			cancellationToken.unregister(connection);
+			if (complete) {
+				// Keep the connection for the next request to this host
+				connectionPool.release(connection);
+			} else {
+				connectionPool.abort(connection);
+			}
+		}
+		
+		// The cached copy has since been evicted, ask again in full
+		return getUrl(urlSpec, false);
+	}
+	
+	/*
+	 * Read and cache a response body.
+	 */
+	private String readBody(String urlSpec, HttpURLConnection connection, InputStream in, 
+			ResponseCache responseCache) throws IOException {
+		// A gzipped body's content length says nothing of its decoded size
+		int sizeHint = ConnectionPool.isCompressed(connection) ? -1 : connection.getContentLength();
+		ResponseBuffer body = new ResponseBuffer(sizeHint).readFrom(in);
+		
+		responseCount.incrementAndGet();
+		responseBytes.addAndGet(body.size());
+		responseAllocations.addAndGet(body.getAllocations());
+		//Log.v(TAG, "read " + body.size() + " bytes with " + body.getAllocations() + " allocations: " + urlSpec);
+		
+		String charset = getCharset(connection.getContentType());
+		responseCache.put(urlSpec, connection, body, charset);
+		return body.toString(charset);
+	}
+	
+	/*
+	 * Get the charset named in a Content-Type header, defaulting to UTF-8.
+	 */
+	static String getCharset(String contentType) {
+		if (contentType != null) {
+			for (String param : contentType.split(";")) {
+				param = param.trim();
+				if (param.toLowerCase().startsWith(CHARSET_PARAM)) {
+					String charset = param.substring(CHARSET_PARAM.length()).replace("\"", "").trim();
+					if (charset.length() > 0) return charset;
+				}
+			}
 		}
+		return DEFAULT_CHARSET;
+	}
+	
+	/*
+	 * Number of responses read by getUrl.
+	 */
+	public static long getResponseCount() {
+		return responseCount.get();
+	}
+	
+	/*
+	 * Total response body bytes read by getUrl.
+	 */
+	public static long getResponseBytes() {
+		return responseBytes.get();
+	}
+	
+	/*
+	 * Total buffer allocations made reading response bodies in getUrl.
+	 */
+	public static long getResponseAllocations() {
+		return responseAllocations.get();
+	}
+	
+	/*
+	 * Number of song info lookups and image downloads that were shared
+	 * with one already in flight rather than made again.
+	 */
+	public static int getCoalescedRequestCount() {
+		return songInfoRequests.getSharedCount() + imageDownloads.getSharedCount();
 	}
 	
 	/*
@@ -82,52 +264,185 @@ public class MusicFetcher {
 	 * to fetch a song's image.
 	 */
 	void downloadUrlToFilePath(String urlSpec, File file) throws IOException {
-        URL url = new URL(urlSpec);
-        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		downloadUrlToFilePath(urlSpec, file, cancellationToken);
+	}
+	
+	/*
+	 * Method to download a URL into a file, stopping early if the
+	 * token is cancelled. Transient failures are retried.
+	 */
+	void downloadUrlToFilePath(final String urlSpec, final File file, final CancellationToken token) throws IOException {
+		long start = System.nanoTime();
+		try {
+			RetryPolicy.execute(urlSpec, token, new RetryPolicy.Request<Void>() {
+				public Void execute() throws IOException {
+					downloadUrlToFileOnce(urlSpec, file, token);
+					return null;
+				}
+			});
+		} finally {
+			Metrics.DOWNLOAD.recordSince(start);
+		}
+	}
+	
+	/*
+	 * Make a single attempt at downloading a URL into a file. A partial
+	 * download is deleted.
+	 */
+	private void downloadUrlToFileOnce(String urlSpec, File file, CancellationToken token) throws IOException {
+        ConnectionPool connectionPool = ConnectionPool.getInstance(context);
+        HttpURLConnection connection = connectionPool.open(urlSpec);
         FileOutputStream out = null;
+        File tempFile = null;
+        boolean complete = false;
 
+        token.register(connection);
         try {
-            File tempFile = File.createTempFile("download", ".jpg", file.getParentFile());
+            tempFile = File.createTempFile("download", DiskCache.TEMP_SUFFIX, file.getParentFile());
             out = new FileOutputStream(tempFile);
-            InputStream in = connection.getInputStream();
+            InputStream in = connectionPool.openBody(connection);
 
             int bytesRead = 0;
             byte[] buffer = new byte[1024];
-            while ((bytesRead = in.read(buffer)) > 0) {
+            // Read to the end so the connection can be reused
+            while ((bytesRead = in.read(buffer)) != -1) {
+                token.throwIfCancelled();
                 out.write(buffer, 0, bytesRead);
             }
+            complete = true;
             out.close();
             out = null;
-            tempFile.renameTo(file);
+            if (tempFile.renameTo(file)) tempFile = null;
+        } catch (IOException e) {
+            token.throwIfCancelled();
+            throw e;
         } finally {
-            connection.disconnect();
+            token.unregister(connection);
+            if (complete) {
+                connectionPool.release(connection);
+            } else {
+                connectionPool.abort(connection);
+            }
             if (out != null) 
                 out.close();
+            if (tempFile != null)
+                tempFile.delete();
         }
     }
 
 	/*
-	 * Method to help clear all the files in the cache.
+	 * Method to clear image files left behind by older versions, in the
+	 * app's files directory, one per image in the cache directory, or
+	 * downloads interrupted before image downloads moved into the
+	 * ImageCache's directory. Done once, after which the ImageCache
+	 * clears up after itself.
 	 */
-    public void clearCache() {
+    public void clearLegacyImages() {
+        if (legacyImagesCleared) return;
+        SongStore songStore = SongStore.getInstance(context);
+        if (songStore.isLegacyImagesCleared()) {
+            legacyImagesCleared = true;
+            return;
+        }
+        
         for (String fileName : context.fileList()) {
             fileName = fileName.toLowerCase();
             if (fileName.endsWith(".jpg") || fileName.endsWith(".png")) {
                 context.getFileStreamPath(fileName).delete();
             }
         }
+        File legacyDir = new File(context.getCacheDir(), ImageCache.LEGACY_DISK_CACHE_DIR);
+        File[] legacyFiles = legacyDir.listFiles();
+        if (legacyFiles != null) {
+            for (File legacyFile : legacyFiles) {
+                legacyFile.delete();
+            }
+            legacyDir.delete();
+        }
+        File[] cacheFiles = context.getCacheDir().listFiles();
+        if (cacheFiles != null) {
+            for (File cacheFile : cacheFiles) {
+                if (cacheFile.getName().endsWith(DiskCache.TEMP_SUFFIX)) {
+                    cacheFile.delete();
+                }
+            }
+        }
+        songStore.setLegacyImagesCleared();
+        legacyImagesCleared = true;
     }
     
     /*
      * Method that initiates the song image download.
      */
     public void downloadSongImage(Song song) {
-    	if (song.getImageUrl() == null) return;
+    	downloadSongImage(song, cancellationToken);
+    }
+    
+    /*
+     * Method that initiates the song image download, aborting it if
+     * the given token is cancelled.
+     */
+    public void downloadSongImage(Song song, CancellationToken token) {
+    	if (song.getImageUrl() == null || token.isCancelled()) return;
+    	
+    	// No need to download an image that is already cached
+    	String imageUrl = song.getImageUrl();
+    	ImageCache imageCache = ImageCache.getInstance(context);
+    	if (!imageCache.hasImage(imageUrl)) {
+    		Boolean downloaded = joinImageDownload(imageUrl, token);
+    		if (downloaded == null && !token.isCancelled()) {
+    			// The download shared with may have been cancelled rather
+    			// than failed, so try once more for this song
+    			downloaded = joinImageDownload(imageUrl, token);
+    		}
+    		if (!Boolean.TRUE.equals(downloaded)) return;
+    	}
+    	
+    	// Record the image size for the GridView's row layout
+    	if (song.getImageWidth() <= 0) {
+    		int[] size = imageCache.getImageSize(imageUrl);
+    		if (size != null) {
+    			song.setImageSize(size[0], size[1]);
+    			if (isGraphApi()) {
+    				SongStore.getInstance(context).saveSongInfo(Collections.singletonList(song));
+    			}
+    		}
+    	}
+    }
+    
+    /*
+     * Download an image into the cache, sharing the download with anyone
+     * already fetching the URL. Returns whether it was downloaded, or
+     * null if a shared download did not finish.
+     */
+    private Boolean joinImageDownload(String imageUrl, CancellationToken token) {
+    	SingleFlight.Flight<Boolean> flight = imageDownloads.join(imageUrl);
+    	if (!flight.isLeader()) {
+    		return Boolean.TRUE.equals(flight.await()) ? Boolean.TRUE : null;
+    	}
+    	
+    	// The full image is only kept until it is shrunk into the cache
+    	ImageCache imageCache = ImageCache.getInstance(context);
+    	File file = imageCache.getDownloadFile(imageUrl);
+    	boolean downloaded = false;
     	try {
-    		downloadUrlToFilePath(song.getImageUrl(), song.getLocalFile(context));
+    		// It may have landed between the check and the join
+    		if (!imageCache.hasImage(imageUrl)) {
+    			downloadUrlToFilePath(imageUrl, file, token);
+    			if (!imageCache.putImage(imageUrl, file)) {
+    				throw new IOException("Could not store image");
+    			}
+    		}
+    		downloaded = true;
+    	} catch (CancellationToken.CancelledException e) {
+    		// Nobody wants this image any more
     	} catch (IOException e) {
-    		Log.i(TAG, "Failed to download song image: " + song.getImageUrl(), e);
+    		Log.i(TAG, "Failed to download song image: " + imageUrl, e);
+    	} finally {
+    		file.delete();
+    		imageDownloads.finish(imageUrl, flight, downloaded);
     	}
+    	return downloaded;
     }
     
     /*
@@ -135,49 +450,298 @@ public class MusicFetcher {
      * a song.
      */
     public void downloadSongInfo(Song song) {
+    	// A batch of one, so it shares any lookup of the same ID in flight
+    	downloadSongInfo(Collections.singletonList(song));
+    }
+    
+    /*
+     * Method to download the detailed information for several songs
+     * at once, using multi-ID Graph API requests of at most
+     * MAX_IDS_PER_REQUEST IDs each.
+     */
+    public void downloadSongInfo(List<Song> songs) {
+    	// Fill in what the song store already has, unless the songs come
+    	// from a stand-in for the Graph API
+    	boolean useStore = isGraphApi();
+    	SongStore songStore = SongStore.getInstance(context);
+    	List<Song> missing = useStore ? songStore.loadSongInfo(songs) : songs;
+    	
+    	// Group the songs that still need info by ID
+    	LinkedHashMap<String, List<Song>> pending = new LinkedHashMap<String, List<Song>>();
+    	for (Song song : missing) {
+    		if (song.getImageUrl() != null || song.getId() == null) continue;
+    		List<Song> songsForId = pending.get(song.getId());
+    		if (songsForId == null) {
+    			songsForId = new ArrayList<Song>();
+    			pending.put(song.getId(), songsForId);
+    		}
+    		songsForId.add(song);
+    	}
+    	
+    	// Look up the IDs nobody else is fetching, and wait for the rest
+    	LinkedHashMap<String, SingleFlight.Flight<JSONObject>> flights = 
+    			new LinkedHashMap<String, SingleFlight.Flight<JSONObject>>();
+    	ArrayList<String> ids = new ArrayList<String>();
+    	for (String id : pending.keySet()) {
+    		SingleFlight.Flight<JSONObject> flight = songInfoRequests.join(id);
+    		flights.put(id, flight);
+    		if (flight.isLeader()) {
+    			ids.add(id);
+    		}
+    	}
+    	
+    	for (int start = 0; start < ids.size(); start += MAX_IDS_PER_REQUEST) {
+    		List<String> chunk = ids.subList(start, Math.min(start + MAX_IDS_PER_REQUEST, ids.size()));
+    		JSONObject json = null;
+    		try {
+    			// The response is an object keyed by each requested ID
+    			String jsonString = getUrl(graphEndpoint + "/?ids=" 
+    					+ URLEncoder.encode(TextUtils.join(",", chunk), "UTF-8"));
+    			json = new JSONObject(jsonString);
+    		} catch (CancellationToken.CancelledException e) {
+    			// Abandoned, the finally below releases anyone waiting
+    		} catch (IOException e) {
+    			Log.i(TAG, "Exception downloading batched song info JSON", e);
+    		} catch (JSONException e) {
+    			Log.i(TAG, "Exception parsing JSON", e);
+    		} finally {
+    			// Hand each ID's info to anyone waiting on it
+    			for (String id : chunk) {
+    				songInfoRequests.finish(id, flights.get(id), json != null ? json.optJSONObject(id) : null);
+    			}
+    		}
+    	}
+    	
+    	// Apply the info, whether this call or another one fetched it
+    	for (Map.Entry<String, SingleFlight.Flight<JSONObject>> entry : flights.entrySet()) {
+    		String id = entry.getKey();
+    		JSONObject songJson = entry.getValue().await();
+    		if (songJson == null) {
+    			Log.i(TAG, "No song info returned for: " + id);
+    			continue;
+    		}
+    		for (Song song : pending.get(id)) {
+    			try {
+    				setSongInfo(song, songJson);
+    			} catch (JSONException e) {
+    				Log.i(TAG, "Exception parsing JSON for song: " + id, e);
+    			}
+    		}
+    	}
+    	
+    	// Keep what was downloaded for next time
+    	if (useStore) {
+    		songStore.saveSongInfo(missing);
+    	}
+    }
+    
+    /*
+     * Set a song object's detail fields from its Graph API JSON. The
+     * song is left untouched if any field is missing, so that it is not
+     * saved half filled in.
+     */
+    void setSongInfo(Song song, JSONObject json) throws JSONException {
+    	// Song image URL, and its size when the Graph API provides it
+    	JSONObject image = json.getJSONArray(JSON_IMAGE).getJSONObject(0);
+    	String imageUrl = image.getString(JSON_URL);
 
-    	try {
-    		
-    		// No need to download song info if it exists
-    		if (song.getImageUrl() != null) return;
+    	// Song description
+    	String description = json.getString(JSON_DESCRIPTION);
+
+    	// Song attribution, e.g. Spotify
+    	String siteName = json.getString(JSON_SITENAME);
+
+    	// Song's musician
+    	String musician = json.getJSONObject(JSON_DATA)
+    			.getJSONArray(JSON_MUSICIAN)
+    			.getJSONObject(0)
+    			.getString(JSON_NAME);
+
+    	// Song audio link
+    	String audioUrl = json.getJSONArray(JSON_AUDIO)
+    			.getJSONObject(0)
+    			.getString(JSON_URL);
+    	
+    	song.setImageUrl(imageUrl);
+    	if (song.getImageWidth() <= 0) {
+    		song.setImageSize(image.optInt(JSON_WIDTH), image.optInt(JSON_HEIGHT));
+    	}
+    	song.setDescription(description);
+    	song.setSiteName(siteName);
+    	song.setMusician(musician);
+    	song.setAudioUrl(audioUrl);
+    }
+    
+    /*
+     * Fetch the first page of the user's music listens, handing each song
+     * to the listener as soon as it has been read off the connection.
+     * Returns the URL of the next page, or null if there is none.
+     */
+    public String fetchSongs(String accessToken, SongParsedListener listener) throws IOException {
+    	return fetchSongPage(getFirstPageUrl(accessToken), listener);
+    }
+    
+    /*
+     * URL of the first page of the user's music listens.
+     */
+    public String getFirstPageUrl(String accessToken) throws IOException {
+    	return graphEndpoint + MUSIC_LISTENS_PATH 
+    			+ "?access_token=" + URLEncoder.encode(accessToken, "UTF-8");
+    }
+    
+    /*
+     * URL of the page of music listens at a cursor from getPageCursor,
+     * for the given session. An empty cursor is the first page.
+     */
+    public String getPageUrl(String accessToken, String cursor) throws IOException {
+    	String url = getFirstPageUrl(accessToken);
+    	return cursor.length() > 0 ? url + "&" + cursor : url;
+    }
+    
+    /*
+     * The paging parameters of a music.listens page URL, e.g. its offset
+     * and limit or after cursor, without the access token, so they can be
+     * kept and used with a later session. Null for a null URL.
+     */
+    public static String getPageCursor(String pageUrl) {
+    	if (pageUrl == null) return null;
+    	int query = pageUrl.indexOf('?');
+    	if (query < 0) return "";
+    	StringBuilder cursor = new StringBuilder();
+    	for (String param : pageUrl.substring(query + 1).split("&")) {
+    		if (param.length() == 0 || param.startsWith(PARAM_ACCESS_TOKEN)) continue;
+    		if (cursor.length() > 0) {
+    			cursor.append('&');
+    		}
+    		cursor.append(param);
+    	}
+    	return cursor.toString();
+    }
+    
+    /*
+     * Fetch only the listens newer than sinceTime, in milliseconds, for
+     * refreshing a list that already holds the older ones. Pages are
+     * followed until one has nothing newer.
+     */
+    public void fetchNewSongs(String accessToken, final long sinceTime, 
+    		final SongParsedListener listener) throws IOException {
+    	// The Graph API takes seconds, and "since" includes that second
+    	String urlSpec = graphEndpoint + MUSIC_LISTENS_PATH 
+    			+ "?access_token=" + URLEncoder.encode(accessToken, "UTF-8")
+    			+ "&since=" + (sinceTime / 1000 + 1);
+    	
+    	final int[] newSongs = new int[1];
+    	SongParsedListener newerOnly = new SongParsedListener() {
+    		public void onSongParsed(Song song) {
+    			if (song.getListenTime() > sinceTime) {
+    				newSongs[0]++;
+    				listener.onSongParsed(song);
+    			}
+    		}
+    	};
+    	while (urlSpec != null) {
+    		newSongs[0] = 0;
+    		urlSpec = fetchSongPage(urlSpec, newerOnly);
+    		if (newSongs[0] == 0) break;
+    	}
+    }
+    
+    /*
+     * Fetch one page of music listens, such as the next page URL returned
+     * by fetchSongs. Returns the URL of the page after it, or null.
+     */
+    public String fetchSongPage(final String urlSpec, final SongParsedListener listener) throws IOException {
+    	if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+    		// No streaming JsonReader before API 11, parse the whole response
+    		return readSongs(getUrl(urlSpec), listener);
+    	}
+    	
+    	// Songs are handed on as they are parsed, so only a request that
+    	// failed before the first song can be made again
+    	final int[] parsed = new int[1];
+    	final SongParsedListener countingListener = new SongParsedListener() {
+    		public void onSongParsed(Song song) {
+    			parsed[0]++;
+    			listener.onSongParsed(song);
+    		}
+    	};
+    	return RetryPolicy.execute(urlSpec, cancellationToken, new RetryPolicy.Request<String>() {
+    		public String execute() throws IOException {
+    			return streamSongPage(urlSpec, countingListener);
+    		}
     		
-    		// Make a Graph API call to the endpoint
-    		// represented by the song ID.
-    		String jsonString = 
-        		getUrl(GRAPH_ENDPOINT + "/" + song.getId());
-    		JSONObject json = new JSONObject(jsonString);
-    		if (json != null) {
-    			// Set the song object's instance variables
-    			
-    			// Song image URL
-    			song.setImageUrl(json.getJSONArray(JSON_IMAGE)
-    					.getJSONObject(0)
-    					.getString(JSON_URL));
-    			
-    			// Song description
-    			song.setDescription(json.getString(JSON_DESCRIPTION));
-    			
-    			// Song attribution, e.g. Spotify
-    			song.setSiteName(json.getString(JSON_SITENAME));
-    			
-    			// Song's musician
-    			song.setMusician(json.getJSONObject(JSON_DATA)
-    					.getJSONArray(JSON_MUSICIAN)
-    					.getJSONObject(0)
-    					.getString(JSON_NAME));
-    			
-    			// Song audio link
-    			song.setAudioUrl(json.getJSONArray(JSON_AUDIO)
-    					.getJSONObject(0)
-    					.getString(JSON_URL));
-    			
+    		@Override
+    		public boolean canRetry() {
+    			return parsed[0] == 0;
     		}
+    	});
+    }
+    
+    /*
+     * Make a single attempt at streaming a page of music listens.
+     */
+    private String streamSongPage(String urlSpec, SongParsedListener listener) throws IOException {
+    	ConnectionPool connectionPool = ConnectionPool.getInstance(context);
+    	HttpURLConnection connection = connectionPool.open(urlSpec, true);
+    	ResponseCache responseCache = ResponseCache.getInstance(context);
+    	boolean revalidating = responseCache.addValidators(urlSpec, connection);
+    	boolean complete = false;
+    	cancellationToken.register(connection);
+    	try {
+    		InputStream in = null;
+    		if (revalidating && connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+    			// Unchanged since it was cached, parse the cached copy
+    			in = responseCache.openBody(urlSpec);
+    			if (in == null) {
+    				// The cached copy has since been evicted, ask again in full
+    				cancellationToken.unregister(connection);
+    				connectionPool.release(connection);
+    				connection = connectionPool.open(urlSpec, true);
+    				cancellationToken.register(connection);
+    			}
+    		}
+    		if (in == null) {
+    			// Cache the response as it is parsed
+    			in = responseCache.cacheStream(urlSpec, connection, connectionPool.openBody(connection), 
+    					getCharset(connection.getContentType()));
+    		}
+    		// The parser reads the stream to its end and closes it, which
+    		// commits the cached copy
+    		String next = MusicListensParser.parse(in, listener);
+    		complete = true;
+    		return next;
     	} catch (IOException e) {
-            Log.i(TAG, "Exception downloading song info JSON", e);
-        } catch (JSONException e) {
-            Log.i(TAG, "Exception parsing JSON", e);
-        }
-        
+    		cancellationToken.throwIfCancelled();
+    		throw e;
+    	} finally {
+    		cancellationToken.unregister(connection);
+    		if (complete) {
+    			connectionPool.release(connection);
+    		} else {
+    			connectionPool.abort(connection);
+    		}
+    	}
+    }
+    
+    /*
+     * A parser for Graph API timestamps. SimpleDateFormat is not thread
+     * safe, so each parse pass makes its own.
+     */
+    static DateFormat newListenTimeFormat() {
+    	return new SimpleDateFormat(LISTEN_TIME_FORMAT, Locale.US);
+    }
+    
+    /*
+     * Parse a Graph API timestamp to milliseconds, or 0 if it is missing
+     * or malformed.
+     */
+    static long parseListenTime(DateFormat format, String time) {
+    	if (time == null) return 0;
+    	try {
+    		return format.parse(time).getTime();
+    	} catch (ParseException e) {
+    		return 0;
+    	}
     }
     
     /*
@@ -185,26 +749,44 @@ public class MusicFetcher {
      * is a result of a call to the me/music.listens Graph API GET call.  
      */
     public ArrayList<Song> fetchSongs(String jsonString) {
-    	ArrayList<Song> songs = new ArrayList<Song>();	
+    	final ArrayList<Song> songs = new ArrayList<Song>();
+    	readSongs(jsonString, new SongParsedListener() {
+    		public void onSongParsed(Song song) {
+    			songs.add(song);
+    		}
+    	});
+        return songs;
+    }
+    
+    /*
+     * Hand each song in a music.listens JSON string to the listener.
+     * Returns the URL of the next page, or null if there is none.
+     */
+    String readSongs(String jsonString, SongParsedListener listener) {
     	try {
     		//Log.i(TAG, "received jsonString: " + jsonString);
     		
-    		String jsonData = new JSONObject(jsonString).getString(JSON_DATA);
-    		JSONTokener tokener = new JSONTokener(jsonData.toString());
-    		JSONArray array = (JSONArray)tokener.nextValue();
+    		JSONObject json = new JSONObject(jsonString);
+    		JSONArray array = json.getJSONArray(JSON_DATA);
+    		DateFormat timeFormat = newListenTimeFormat();
     		for (int i = 0; i < array.length(); i++) {
                 JSONObject musicListensJson = array.optJSONObject(i);
                 if (musicListensJson != null) {
                 	// Initialize a song object. The details can be
                 	// populated in a subsequent fetch.
-                	songs.add(new Song(musicListensJson));
+                	Song song = new Song(musicListensJson);
+                	song.setListenTime(parseListenTime(timeFormat, 
+                			musicListensJson.optString(JSON_START_TIME, null)));
+                	listener.onSongParsed(song);
                 }
             }
+    		
+    		JSONObject paging = json.optJSONObject(JSON_PAGING);
+    		return paging != null ? paging.optString(JSON_NEXT, null) : null;
     	} catch (JSONException e) {
             Log.i(TAG, "Exception parsing JSON", e);
+            return null;
         }
-        
-        return songs;
     }
       
 }
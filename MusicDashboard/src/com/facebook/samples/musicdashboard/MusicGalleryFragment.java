@@ -21,6 +21,10 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -28,6 +32,7 @@ import org.json.JSONObject;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
@@ -42,6 +47,8 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.GridView;
@@ -50,6 +57,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.facebook.samples.musicdashboard.MusicFetcher.SongParsedListener;
 import com.facebook.samples.musicdashboard.SongFetcherThread.SongImageDownloadListener;
 
 public class MusicGalleryFragment extends Fragment {
@@ -59,14 +67,49 @@ public class MusicGalleryFragment extends Fragment {
 	private static final String JSON_PICTURE = "picture";
 	private static final String JSON_DATA = "data";
 	private static final String JSON_URL = "url";
+	// Start fetching the next page when this close to the end of the grid
+	private static final int PAGE_PREFETCH_DISTANCE = 12;
+	// Image downloads are cancelled for songs this many screens away from
+	// the visible range, just past what the scheduler prefetches
+	private static final int DOWNLOAD_WINDOW_SCREENS = ViewportScheduler.PREFETCH_SCREENS + 1;
 	
 	private ArrayList<Song> songs;
+	// Shared Song for each song ID, so repeated listens are resolved once
+	private SongRegistry songRegistry;
 	private GridView gridView;
 	private ArrayAdapter<Song> adapter;
+	// Coalesces song updates into one GridView pass per frame
+	private SongGridInvalidator invalidator = new SongGridInvalidator();
+	// Positions whose image downloads are kept, and the songs whose
+	// downloads were cancelled for leaving them
+	private int downloadWindowFirst = -1;
+	private int downloadWindowLast = -1;
+	private HashSet<Song> cancelledSongs = new HashSet<Song>();
 	private ImageView profileImageView;
 	private TextView userNameTextView;
 	
 	private SongFetcherThread downloadThread;
+	private BitmapLoaderThread bitmapLoader;
+	// Set while music is served by a local Graph stand-in
+	private ReplayBenchmark replay;
+	
+	// Paging state for music.listens, the cursor of the next page from
+	// MusicFetcher.getPageCursor. Only accessed on the main thread.
+	private String nextPageCursor;
+	// Listens at the start of the page at nextPageCursor that are already
+	// shown, because it failed partway, to be skipped when it is retried
+	private int nextPageSkip;
+	private boolean loadingPage;
+	private boolean scrolling;
+	
+	// Set once the first frame is drawn, before which nothing but the
+	// saved song list is loaded. Only accessed on the main thread.
+	private boolean firstFrameDrawn;
+	// Set while the restored song list waits for the first frame to be
+	// brought up to date
+	private boolean restoredMusic;
+	// Saves the song list in order, off the main thread
+	private final ExecutorService storeExecutor = Executors.newSingleThreadExecutor();
 	
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -74,14 +117,117 @@ public class MusicGalleryFragment extends Fragment {
 		
 		super.setRetainInstance(true);
 		
+		// The process may have been restored straight into the gallery
+		if (!StartupTrace.isRunning()) {
+			StartupTrace.begin();
+		}
+		
 		// We have a menu
 		setHasOptionsMenu(true);
 		
-		// Get the music info
-		fetchMusic();
+		// Cheap enough for the critical path, and the process may not have
+		// started at the login screen
+		ConnectionPool.getInstance(getActivity());
+		MusicDashboardApplication.restoreSession(getActivity());
+		
+		// The thread to decode song images for the GridView. Row heights
+		// come from the layout model, so a decoded image only needs
+		// attaching to the views waiting on it
+		bitmapLoader = new BitmapLoaderThread("SongDecode", getActivity().getApplicationContext(), 
+				new Handler());
+		bitmapLoader.start();
+		
+		// Show the songs from last time straight away and bring them up
+		// to date once they are on screen, or get the music info
+		restoredMusic = restoreMusic();
+		if (!restoredMusic) {
+			fetchMusic();
+		}
+		StartupTrace.mark("gallery");
+	}
+	
+	/*
+	 * Restore the song list saved by the last run, decoding the first
+	 * thumbnails on this thread so that the first frame shows them.
+	 * Returns false if there is nothing to restore.
+	 */
+	private boolean restoreMusic() {
+		Context c = getActivity().getApplicationContext();
+		SongStore store = SongStore.getInstance(c);
+		ArrayList<Song> savedSongs = store.loadListens();
+		if (savedSongs.isEmpty()) return false;
+		
+		startFetcherThread();
+		for (Song song : savedSongs) {
+			songs.add(songRegistry.intern(song));
+		}
+		nextPageCursor = store.loadListensNextPageCursor();
+		StartupTrace.mark("restore " + songs.size());
+		
+		ImageCache imageCache = ImageCache.getInstance(c);
+		int thumbnails = Math.min(songs.size(), getResources().getInteger(R.integer.startup_thumbnails));
+		for (int i = 0; i < thumbnails; i++) {
+			String imageUrl = songs.get(i).getImageUrl();
+			if (imageUrl != null) {
+				imageCache.getBitmap(imageUrl);
+			}
+		}
+		StartupTrace.mark("thumbnails");
+		
+		setAdapter(new SongAdapter(songs));
+		return true;
+	}
+	
+	/*
+	 * Called once the first frame has been drawn. Sets up everything
+	 * that was kept off the critical path.
+	 */
+	private void onFirstFrame() {
+		firstFrameDrawn = true;
+		StartupTrace.mark("first frame");
+		
+		requestUserData();
+		extendAccessToken();
+		
+		if (restoredMusic) {
+			restoredMusic = false;
+			// Get whatever the restored songs are missing, then any newer
+			// listens
+			ImageCache imageCache = ImageCache.getInstance(getActivity());
+			IdentityHashMap<Song, Boolean> seen = new IdentityHashMap<Song, Boolean>();
+			for (int position = 0; position < songs.size(); position++) {
+				Song song = songs.get(position);
+				if (seen.put(song, Boolean.TRUE) != null) continue;
+				if (song.getImageUrl() == null) {
+					downloadThread.downloadSongInfo(song, position);
+					downloadThread.downloadSongImage(song, position);
+				} else if (!imageCache.hasImage(song.getImageUrl())) {
+					downloadThread.downloadSongImage(song, position);
+				}
+			}
+			refreshMusic();
+		}
 	}
 	
 	void fetchMusic() {
+		startFetcherThread();
+		
+		// Start with an empty GridView that fills in as songs are parsed
+		setAdapter(new SongAdapter(songs));
+		
+		// Get the first page of music listens, abandoned along with the
+		// thread if the fetch is replaced
+		nextPageCursor = null;
+		nextPageSkip = 0;
+		loadSongPage(new MusicFetcher(getActivity().getApplicationContext(), 
+				downloadThread.getCancellationToken()), null);
+	}
+	
+	/*
+	 * Replace any current downloads with a new thread for an empty
+	 * song list.
+	 */
+	private void startFetcherThread() {
 		// Kill any current downloads
 		if (downloadThread != null) {
 			downloadThread.quit();
@@ -89,56 +235,268 @@ public class MusicGalleryFragment extends Fragment {
 		}
 		
 		songs = new ArrayList<Song>();
+		songRegistry = new SongRegistry();
+		downloadWindowFirst = -1;
+		downloadWindowLast = -1;
+		cancelledSongs.clear();
+		Metrics.setGallery(songRegistry, invalidator);
 		
 		Context c = getActivity().getApplicationContext();
-		final MusicFetcher fetcher = new MusicFetcher(c);
 		
 		// The handler for song image/info download
 		Handler handler = new Handler();
 		// The listener for song image/info download
 		SongImageDownloadListener listener = new SongImageDownloadListener () {
-			public void onSongImageUpdated() {
-				if (null == adapter) return;
-				// Notify the GridView that data has changed
-				adapter.notifyDataSetChanged();
+			public void onSongImageUpdated(Song song, boolean resized) {
+				// Update the song's cell with the next frame
+				invalidator.songChanged(song, resized);
 			}
 		};
 		
 		// The thread to download song image info
 		downloadThread = new SongFetcherThread("SongImage", c, handler, listener);
 		downloadThread.start();
+	}
+	
+	/*
+	 * Cancel the image downloads of songs that have scrolled well away
+	 * from the visible range, and download them again if they come back.
+	 */
+	private void updateDownloadWindow(int first, int last) {
+		int window = (last - first + 1) * DOWNLOAD_WINDOW_SCREENS;
+		int windowFirst = Math.max(0, first - window);
+		int windowLast = Math.min(songs.size() - 1, last + window);
+		
+		HashSet<Song> kept = new HashSet<Song>();
+		for (int position = windowFirst; position <= windowLast; position++) {
+			Song song = songs.get(position);
+			if (kept.add(song) && cancelledSongs.remove(song)) {
+				downloadThread.downloadSongImage(song, position);
+			}
+		}
 		
+		// A song listened to more than once may still be in the window
+		if (downloadWindowFirst >= 0) {
+			ImageCache imageCache = ImageCache.getInstance(getActivity());
+			int end = Math.min(downloadWindowLast, songs.size() - 1);
+			for (int position = downloadWindowFirst; position <= end; position++) {
+				if (position >= windowFirst && position <= windowLast) continue;
+				Song song = songs.get(position);
+				if (kept.contains(song) || cancelledSongs.contains(song)) continue;
+				if (song.getImageUrl() != null && imageCache.hasImage(song.getImageUrl())) continue;
+				cancelledSongs.add(song);
+				downloadThread.cancelSong(song);
+			}
+		}
+		downloadWindowFirst = windowFirst;
+		downloadWindowLast = windowLast;
+	}
+	
+	/*
+	 * Save the song list and paging state in the background, so that
+	 * the next start can show them before fetching anything.
+	 */
+	private void saveSongList() {
+		// Music from the local Graph stand-in is not worth keeping
+		if (replay != null) return;
+		final SongStore store = SongStore.getInstance(getActivity());
+		final ArrayList<Song> savedSongs = new ArrayList<Song>(songs);
+		final String savedNextPageCursor = nextPageCursor;
+		storeExecutor.execute(new Runnable() {
+			public void run() {
+				store.saveListens(savedSongs, savedNextPageCursor);
+			}
+		});
+	}
+	
+	/*
+	 * Fetch only the listens newer than those already shown and add them
+	 * to the top of the GridView, keeping the songs already resolved.
+	 */
+	void refreshMusic() {
+		long newestListenTime = 0;
+		for (Song song : songs) {
+			newestListenTime = Math.max(newestListenTime, song.getListenTime());
+		}
+		if (downloadThread == null || newestListenTime == 0) {
+			// Nothing to build on, start over
+			fetchMusic();
+			return;
+		}
+		
+		final SongFetcherThread thread = downloadThread;
+		final MusicFetcher fetcher = new MusicFetcher(getActivity().getApplicationContext(), 
+				thread.getCancellationToken());
+		final long sinceTime = newestListenTime;
 		final Handler mHandler = new Handler();
-		// Facebook - Graph API request for the music.listens info
-		MusicDashboardApplication.mAsyncRunner.request("me/music.listens", new BaseRequestListener() {
-
+		final String accessToken = getAccessToken();
+		new Thread() {
 			@Override
-			public void onComplete(final String response, Object state) {
-				// Pass the JSON response and get the music info
-				songs = fetcher.fetchSongs(response);
+			public void run() {
+				final ArrayList<Song> newSongs = new ArrayList<Song>();
+				try {
+					fetcher.fetchNewSongs(accessToken, sinceTime, new SongParsedListener() {
+						public void onSongParsed(Song song) {
+							newSongs.add(song);
+						}
+					});
+				} catch (CancellationToken.CancelledException e) {
+					return;
+				} catch (IOException e) {
+					Log.i(TAG, "Could not fetch new music listens", e);
+				}
+				
 				mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                    	// Update the GridView with initial info that does
-                    	// not include song image and other details that
-                    	// are about to be downloaded
-        				setAdapter(new SongAdapter(songs));
-        				
-        				// Clear the cache in preparation for image downloads
-        				downloadThread.clearSongImages();
-        				
-        				// For each song that was parsed out in the "fetchSongs"
-        				// call, get the song info and image
-        				for (Song song : songs) {
-        					downloadThread.downloadSongInfo(song);
-        					downloadThread.downloadSongImage(song);
-        				}
-                    }
-                });
+					@Override
+					public void run() {
+						if (downloadThread != thread) return;
+						StartupTrace.end("refresh " + newSongs.size());
+						if (newSongs.isEmpty()) return;
+						
+						// Newest listens go first, then get the details and
+						// images of the songs that are new to the list
+						downloadThread.songsInserted(newSongs.size());
+						if (downloadWindowFirst >= 0) {
+							downloadWindowFirst += newSongs.size();
+							downloadWindowLast += newSongs.size();
+						}
+						ArrayList<Song> newSharedSongs = new ArrayList<Song>(newSongs.size());
+						for (Song song : newSongs) {
+							Song shared = songRegistry.intern(song);
+							if (shared == song) {
+								downloadThread.downloadSongInfo(song, newSharedSongs.size());
+								downloadThread.downloadSongImage(song, newSharedSongs.size());
+							}
+							newSharedSongs.add(shared);
+						}
+						songs.addAll(0, newSharedSongs);
+						if (adapter != null) {
+							adapter.notifyDataSetChanged();
+						}
+						saveSongList();
+					}
+				});
+			}
+		}.start();
+	}
+	
+	/*
+	 * Fetch the next page of music listens, unless there are no more
+	 * or a page is already loading.
+	 */
+	void loadNextPage() {
+		if (loadingPage || nextPageCursor == null || downloadThread == null) return;
+		loadSongPage(new MusicFetcher(getActivity().getApplicationContext(), 
+				downloadThread.getCancellationToken()), nextPageCursor, nextPageSkip);
+	}
+	
+	/*
+	 * Fetch the first page of music listens.
+	 */
+	private void loadSongPage(MusicFetcher fetcher, String pageCursor) {
+		loadSongPage(fetcher, pageCursor, 0);
+	}
+	
+	/*
+	 * Fetch the page of music listens at a cursor, or the first page if
+	 * pageCursor is null, appending each song to the GridView as it is
+	 * parsed. The first skip listens are already shown and are left out.
+	 * If the page fails partway it is kept to be tried again, skipping
+	 * the listens that did arrive, unless the request can never succeed.
+	 */
+	private void loadSongPage(final MusicFetcher fetcher, final String pageCursor, final int skip) {
+		loadingPage = true;
+		
+		final SongFetcherThread thread = downloadThread;
+		final ArrayList<Song> fetchedSongs = songs;
+		final Handler mHandler = new Handler();
+		final String accessToken = getAccessToken();
+		// Graph API request for the music.listens info, streamed so that
+		// each song shows up as soon as it has been read
+		new Thread() {
+			@Override
+			public void run() {
+				if (pageCursor == null) {
+					mHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							// Clear the cache in preparation for image downloads
+							if (downloadThread != thread) return;
+							downloadThread.clearSongImages();
+						}
+					});
+				}
+				
+				// Listens of this page read so far, including skipped ones
+				final int[] read = new int[1];
+				SongParsedListener songListener = new SongParsedListener() {
+					public void onSongParsed(final Song song) {
+						if (read[0]++ < skip) return;
+						mHandler.post(new Runnable() {
+		                    @Override
+		                    public void run() {
+		                    	// Ignore songs from a fetch that has been replaced
+		                    	if (downloadThread != thread) return;
+		                    	
+		                    	// Show the song with its initial info, then get
+		                    	// the song details and image unless another
+		                    	// listen of the same song already has
+		                    	Song shared = songRegistry.intern(song);
+		                    	fetchedSongs.add(shared);
+		                    	// The grid picks up every song added this frame at once
+		                    	invalidator.songsAppended();
+		                    	if (shared == song) {
+		                    		int position = fetchedSongs.size() - 1;
+		                    		downloadThread.downloadSongInfo(song, position);
+		                    		downloadThread.downloadSongImage(song, position);
+		                    	}
+		                    }
+		                });
+					}
+				};
+				
+				// The URL is built for the current session, so a saved
+				// cursor works after the access token has changed
+				String cursor = pageCursor != null ? pageCursor : "";
+				String next = null;
+				boolean failed = false;
+				try {
+					next = fetcher.fetchSongPage(fetcher.getPageUrl(accessToken, cursor), songListener);
+				} catch (CancellationToken.CancelledException e) {
+					// The fetch was replaced, nothing is waiting on this page
+				} catch (HttpStatusException e) {
+					// Retrying a request that was refused will not help, so
+					// paging stops here, otherwise the page is left to be
+					// tried again on the next scroll
+					Log.i(TAG, "Could not fetch music listens", e);
+					failed = e.isTransient();
+				} catch (IOException e) {
+					// Leave the page to be tried again on the next scroll,
+					// even if it is the first one
+					Log.i(TAG, "Could not fetch music listens", e);
+					failed = true;
+				}
 				
+				final boolean pageFailed = failed;
+				final String nextCursor = pageFailed ? cursor : MusicFetcher.getPageCursor(next);
+				final int nextSkip = pageFailed ? Math.max(skip, read[0]) : 0;
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						// Runs after every song of the page has been added
+						if (downloadThread != thread) return;
+						nextPageCursor = nextCursor;
+						nextPageSkip = nextSkip;
+						loadingPage = false;
+						StartupTrace.end("first page " + fetchedSongs.size());
+						if (!pageFailed) {
+							// A partial page is saved once it is complete
+							saveSongList();
+						}
+					}
+				});
 			}
-			
-		});
+		}.start();
 	}
 	
 	@Override
@@ -161,6 +519,8 @@ public class MusicGalleryFragment extends Fragment {
 						SharedPreferences mPrefs = PreferenceManager.getDefaultSharedPreferences(getActivity().getApplicationContext());
 						mPrefs.edit().putString("access_token", null).commit();
 						mPrefs.edit().putLong("access_expires", -1).commit();;
+						// The next user should not see this user's music
+						SongStore.getInstance(getActivity()).clearListens();
 						// Go to logged in activity
 						Intent i = new Intent(getActivity(), LoginActivity.class);
 						startActivity(i);						
@@ -175,13 +535,57 @@ public class MusicGalleryFragment extends Fragment {
 		profileImageView = (ImageView)v.findViewById(R.id.profile_picture);
 		userNameTextView = (TextView)v.findViewById(R.id.user_name);
 		
-		// Then make the request to get the actual personalization info
-		requestUserData();
-		
 		// Get the music info
 		gridView = (GridView)v.findViewById(R.id.music_gallery_gridView);
 		setAdapter(new SongAdapter(songs));
 		
+		// Then make the request to get the actual personalization info,
+		// once the first frame is out of the way at startup
+		if (firstFrameDrawn) {
+			requestUserData();
+		} else {
+			gridView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+				public boolean onPreDraw() {
+					gridView.getViewTreeObserver().removeOnPreDrawListener(this);
+					// Run after the frame that is about to be drawn
+					gridView.post(new Runnable() {
+						public void run() {
+							if (!firstFrameDrawn && getActivity() != null) {
+								onFirstFrame();
+							}
+						}
+					});
+					return true;
+				}
+			});
+		}
+		
+		// Download what is on screen first, and fetch more music listens as
+		// the user scrolls near the end. Pages are only fetched while
+		// scrolling, or while the grid is not full.
+		gridView.setOnScrollListener(new AbsListView.OnScrollListener() {
+			
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+				scrolling = scrollState != SCROLL_STATE_IDLE;
+			}
+			
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem,
+					int visibleItemCount, int totalItemCount) {
+				if (downloadThread != null && visibleItemCount > 0) {
+					int lastVisibleItem = firstVisibleItem + visibleItemCount - 1;
+					downloadThread.setVisibleRange(firstVisibleItem, lastVisibleItem);
+					updateDownloadWindow(firstVisibleItem, lastVisibleItem);
+				}
+				
+				boolean nearEnd = firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH_DISTANCE;
+				if (nearEnd && (scrolling || visibleItemCount >= totalItemCount)) {
+					loadNextPage();
+				}
+			}
+		});
+		
 		// For now, clicking on a song in the GridView displays the song's title.
 		gridView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
 
@@ -206,23 +610,79 @@ public class MusicGalleryFragment extends Fragment {
 		inflater.inflate(R.menu.activity_music_gallery, menu);
     }
 	
+	@Override
+	public void onPrepareOptionsMenu(Menu menu) {
+		super.onPrepareOptionsMenu(menu);
+		// Benchmarks are only offered in debug builds
+		boolean debuggable = (getActivity().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+		menu.findItem(R.id.menu_benchmark).setVisible(debuggable);
+		menu.findItem(R.id.menu_replay).setVisible(debuggable);
+	}
+	
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
 		switch (item.getItemId()) {
 			case R.id.menu_refresh:
-				// User selects refresh, update song content
-				fetchMusic();
+				// User selects refresh, get any new song content
+				refreshMusic();
+				return true;
+			case R.id.menu_benchmark:
+				runBenchmarks();
+				return true;
+			case R.id.menu_replay:
+				runReplay();
 				return true;
 			default:
 				return super.onOptionsItemSelected(item);
 		}
 	}
 	
+	/*
+	 * Run the parse benchmarks in the background, logging the results.
+	 */
+	void runBenchmarks() {
+		final Context c = getActivity().getApplicationContext();
+		Toast.makeText(getActivity(), R.string.text_benchmark_running, Toast.LENGTH_SHORT).show();
+		new Thread("ParseBenchmark") {
+			@Override
+			public void run() {
+				new ParseBenchmark(c).run();
+			}
+		}.start();
+	}
+	
+	/*
+	 * Load music from a local Graph API stand-in, timing how long the
+	 * grid takes to fill. Music stays on the stand-in until the fragment
+	 * is destroyed.
+	 */
+	void runReplay() {
+		if (gridView == null) return;
+		if (replay != null) {
+			replay.stop();
+		}
+		replay = new ReplayBenchmark(getActivity(), gridView);
+		replay.start(new Runnable() {
+			public void run() {
+				fetchMusic();
+			}
+		});
+	}
+	
+	/*
+	 * Access token for music.listens requests.
+	 */
+	String getAccessToken() {
+		if (replay != null) return ReplayBenchmark.ACCESS_TOKEN;
+		return MusicDashboardApplication.mFacebook.getAccessToken();
+	}
+	
 	void setAdapter(ArrayAdapter<Song> adapter) {
 		this.adapter = adapter;
 		if (gridView != null) {
 			gridView.setAdapter(adapter);
 		}
+		invalidator.setTarget(gridView, adapter);
 	}
 	
 	/*
@@ -250,24 +710,31 @@ public class MusicGalleryFragment extends Fragment {
         return (gridView.getWidth() - padding - spacing) / numColumns;
     }
 
-	/*
-	 * Used by the GridView adapter to set the column height for a row
-	 */
-	int getColumnHeight(Drawable drawable) {
-        float aspectRatio = (float)drawable.getIntrinsicHeight() / drawable.getIntrinsicWidth();
-        return (int)(getColumnWidth() * aspectRatio);
-    }
-	
 	/*
 	 * The GridView adapter
 	 */
 	private class SongAdapter extends ArrayAdapter<Song> {
+		private SongGridLayout layout;
+		
 		public SongAdapter(ArrayList<Song> songs) {
 			super(getActivity(), 0, songs);
+			
+			// Cells without a known image size are shaped like the placeholder
+			Drawable placeholder = getActivity().getResources().getDrawable(R.drawable.placeholder_song);
+			float placeholderAspectRatio = (float)placeholder.getIntrinsicHeight() / placeholder.getIntrinsicWidth();
+			layout = new SongGridLayout(songs, placeholderAspectRatio);
+		}
+		
+		@Override
+		public void notifyDataSetChanged() {
+			// Songs or their image sizes changed, recompute row heights
+			layout.invalidate();
+			super.notifyDataSetChanged();
 		}
 		
 		@Override
 		public View getView(int position, View convertView, ViewGroup parent) {
+			long start = System.nanoTime();
 			View view = convertView;
 			if (null == view) {
 				view = getActivity().getLayoutInflater().inflate(R.layout.gallery_song, parent, false);
@@ -275,29 +742,27 @@ public class MusicGalleryFragment extends Fragment {
 			
 			ImageView songImageView = (ImageView)view.findViewById(R.id.gallery_song_photoImageView);
 			Song song = getItem(position);
-			Drawable drawable = song.getDrawable(getActivity());
+			songImageView.setTag(song);
 			
+			// Show the placeholder until the image is decoded in the background
+			Drawable drawable = song.getCachedDrawable(getActivity());
+			if (drawable == null) {
+				drawable = song.getPlaceholderDrawable(getActivity());
+				bitmapLoader.loadSongImage(song, songImageView);
+			}
 			songImageView.setImageDrawable(drawable);
 			
-			int height = 0;
+			// Every cell is as tall as the tallest image on its row
 			int numColumns = getActivity().getResources().getInteger(R.integer.gridview_num_columns);
-			int firstCell = position = position % numColumns;
-			int nextRow = firstCell + numColumns;
+			int height = layout.getRowHeight(position, numColumns, getColumnWidth());
 			
-			// find the highest height on our row
-			for (int cell = firstCell; cell < nextRow && cell < getCount(); cell++) {
-				Song cellSong = getItem(cell);
-				Drawable cellDrawable = cellSong.getDrawable(getActivity());
-				int cellHeight = getColumnHeight(cellDrawable);
-				if (cellHeight > height) {
-					height = cellHeight;
-				}
+			if (songImageView.getLayoutParams().height != height) {
+				songImageView.getLayoutParams().height = height;
+				// notify songImageView that its layout params have changed
+				songImageView.requestLayout();
 			}
 			
-			songImageView.getLayoutParams().height = height;
-			// notify songImageView that its layout params have changed
-			songImageView.requestLayout();
-			
+			Metrics.BIND.recordSince(start);
 			return view;
 		}
 	}
@@ -305,16 +770,44 @@ public class MusicGalleryFragment extends Fragment {
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
-		// Stop any current downloads
+		// Stop any current downloads and decodes
 		downloadThread.quit();
+		bitmapLoader.quit();
+		invalidator.cancel();
+		Metrics.setGallery(null, null);
+		storeExecutor.shutdown();
+		if (replay != null) {
+			replay.stop();
+			replay = null;
+		}
+	}
+	
+	@Override
+	public void onPause() {
+		super.onPause();
+		Metrics.stopPeriodicDump();
+	}
+	
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		// Decoded song images can be decoded again from disk
+		ImageCache.getInstance(getActivity()).clearMemory();
 	}
 	
 	@Override
 	public void onResume() {    
         super.onResume();
+        // Log the load path's metrics now and then in debug builds
+        if ((getActivity().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+        	Metrics.startPeriodicDump(getActivity().getApplicationContext(), 
+        			getResources().getInteger(R.integer.metrics_dump_interval_s) * 1000L);
+        }
         if(MusicDashboardApplication.mFacebook.isSessionValid()) {
-        	// Extend the access token if needed
-        	MusicDashboardApplication.mFacebook.extendAccessTokenIfNeeded(getActivity(), null);
+        	// At startup this waits for the first frame
+        	if (firstFrameDrawn) {
+        		extendAccessToken();
+        	}
         } else {
         	// Go to logged in activity
 			Intent i = new Intent(getActivity(), LoginActivity.class);
@@ -322,6 +815,15 @@ public class MusicGalleryFragment extends Fragment {
         }
     }
 	
+	/*
+	 * Extend the access token if needed
+	 */
+	void extendAccessToken() {
+		if (MusicDashboardApplication.mFacebook.isSessionValid()) {
+			MusicDashboardApplication.mFacebook.extendAccessTokenIfNeeded(getActivity(), null);
+		}
+	}
+	
 	/*
 	 * Make a Graph API call to get personalization info
 	 */
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.DateFormat;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.facebook.samples.musicdashboard.MusicFetcher.SongParsedListener;
+
+/*
+ * Single-pass streaming parser for the me/music.listens response. Songs
+ * are handed to the listener as each listen is read off the stream, so
+ * the whole payload is never held in memory.
+ * 
+ * Uses android.util.JsonReader, which needs API 11 or later. Keep all
+ * references to it in this class so older devices never load it.
+ */
+public class MusicListensParser {
+
+	private static final String JSON_DATA = "data";
+	private static final String JSON_SONG = "song";
+	private static final String JSON_ID = "id";
+	private static final String JSON_URL = "url";
+	private static final String JSON_TITLE = "title";
+	private static final String JSON_PAGING = "paging";
+	private static final String JSON_NEXT = "next";
+	private static final String JSON_START_TIME = "start_time";
+	
+	/*
+	 * Read a page of a music.listens response, calling the listener once
+	 * per song. Returns the URL of the next page, or null if this is the
+	 * last one.
+	 */
+	public static String parse(InputStream in, SongParsedListener listener) throws IOException {
+		String nextPageUrl = null;
+		DateFormat timeFormat = MusicFetcher.newListenTimeFormat();
+		JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (JSON_PAGING.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+					nextPageUrl = readNextPageUrl(reader);
+				} else if (JSON_DATA.equals(name)) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						Song song = readMusicListen(reader, timeFormat);
+						if (song != null) {
+							listener.onSongParsed(song);
+						}
+					}
+					reader.endArray();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			// Read to the end, so that a cached copy is known to be whole
+			if (reader.peek() != JsonToken.END_DOCUMENT) {
+				throw new IOException("Unexpected data after music.listens response");
+			}
+			return nextPageUrl;
+		} catch (IllegalStateException e) {
+			// JsonReader reports unexpected tokens this way
+			IOException ioe = new IOException("Malformed music.listens response");
+			ioe.initCause(e);
+			throw ioe;
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/*
+	 * Read the next page link out of a paging object.
+	 */
+	private static String readNextPageUrl(JsonReader reader) throws IOException {
+		String next = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (JSON_NEXT.equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+				next = reader.nextString();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return next;
+	}
+	
+	/*
+	 * Read one listen, returning its song or null if it has none.
+	 */
+	private static Song readMusicListen(JsonReader reader, DateFormat timeFormat) throws IOException {
+		Song song = null;
+		long listenTime = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (JSON_START_TIME.equals(name) && reader.peek() == JsonToken.STRING) {
+				listenTime = MusicFetcher.parseListenTime(timeFormat, reader.nextString());
+			} else if (JSON_DATA.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					if (JSON_SONG.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+						song = readSong(reader);
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
+		if (song != null) {
+			song.setListenTime(listenTime);
+		}
+		return song;
+	}
+	
+	private static Song readSong(JsonReader reader) throws IOException {
+		String id = null;
+		String url = null;
+		String title = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == JsonToken.NULL) {
+				reader.skipValue();
+			} else if (JSON_ID.equals(name)) {
+				id = reader.nextString();
+			} else if (JSON_URL.equals(name)) {
+				url = reader.nextString();
+			} else if (JSON_TITLE.equals(name)) {
+				title = reader.nextString();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
+		// Match Song(JSONObject), which requires all three fields
+		if (id == null || url == null || title == null) return null;
+		return new Song(id, url, title);
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.samples.musicdashboard.MusicFetcher.SongParsedListener;
+
+/*
+ * Micro benchmarks for the listens parsing and song info paths, run on
+ * the device against GraphFixtures pages of 10, 1,000 and 50,000
+ * listens. Each case is warmed up, then repeated for a minimum time,
+ * and reports listens per second and allocations per listen.
+ * 
+ * Runs on the calling thread, which should not be the main thread.
+ */
+public class ParseBenchmark {
+
+	public static final String TAG = "ParseBenchmark";
+	
+	private static final int[] LISTEN_COUNTS = { 10, 1000, 50000 };
+	private static final int WARMUP_ITERATIONS = 3;
+	// Keep repeating a case until it has run this long, and at least once
+	private static final long MIN_MEASURE_MS = 2000;
+	
+	private final Context context;
+	
+	/*
+	 * One benchmarked code path.
+	 */
+	private static abstract class Case {
+		final String name;
+		
+		Case(String name) {
+			this.name = name;
+		}
+		
+		// Prepare the input for a number of listens
+		abstract void setUp(int listens) throws Exception;
+		// Run once over every listen in the input
+		abstract void run() throws Exception;
+	}
+	
+	public ParseBenchmark(Context context) {
+		this.context = context;
+	}
+	
+	/*
+	 * Run every case at every size, logging each result as it comes.
+	 * Returns all of the results.
+	 */
+	public String run() {
+		final MusicFetcher fetcher = new MusicFetcher(context);
+		ArrayList<Case> cases = new ArrayList<Case>();
+		
+		cases.add(new Case("fetchSongs") {
+			String page;
+			
+			void setUp(int listens) {
+				page = GraphFixtures.getListensPage(0, listens, null);
+			}
+			
+			void run() {
+				fetcher.fetchSongs(page);
+			}
+		});
+		
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			cases.add(new Case("MusicListensParser") {
+				byte[] page;
+				
+				void setUp(int listens) throws UnsupportedEncodingException {
+					page = GraphFixtures.getListensPage(0, listens, null).getBytes("UTF-8");
+				}
+				
+				void run() throws IOException {
+					MusicListensParser.parse(new ByteArrayInputStream(page), new SongParsedListener() {
+						public void onSongParsed(Song song) {
+						}
+					});
+				}
+			});
+		}
+		
+		cases.add(new Case("Song(JSONObject)") {
+			JSONArray listens;
+			
+			void setUp(int listens) throws JSONException {
+				this.listens = new JSONObject(GraphFixtures.getListensPage(0, listens, null)).getJSONArray("data");
+			}
+			
+			void run() throws JSONException {
+				for (int i = 0; i < listens.length(); i++) {
+					new Song(listens.getJSONObject(i));
+				}
+			}
+		});
+		
+		cases.add(new Case("setSongInfo") {
+			JSONObject details;
+			Song[] songs;
+			
+			void setUp(int listens) throws JSONException {
+				// Shaped like the response to a multi-ID lookup
+				details = new JSONObject();
+				songs = new Song[listens];
+				for (int i = 0; i < listens; i++) {
+					String id = GraphFixtures.getSongId(i);
+					details.put(id, new JSONObject(GraphFixtures.getSongDetail(id, "http://example.com/" + i + ".jpg")));
+					songs[i] = new Song(id, null, null);
+				}
+			}
+			
+			void run() throws JSONException {
+				for (Song song : songs) {
+					fetcher.setSongInfo(song, details.getJSONObject(song.getId()));
+				}
+			}
+		});
+		
+		StringBuilder report = new StringBuilder();
+		for (Case c : cases) {
+			for (int listens : LISTEN_COUNTS) {
+				String result = measure(c, listens);
+				Log.i(TAG, result);
+				report.append(result).append('\n');
+			}
+		}
+		return report.toString();
+	}
+	
+	private String measure(Case c, int listens) {
+		String label = c.name + " x" + listens + ": ";
+		try {
+			c.setUp(listens);
+			for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+				c.run();
+			}
+			
+			System.gc();
+			Debug.resetThreadAllocCount();
+			Debug.startAllocCounting();
+			int iterations = 0;
+			long start = SystemClock.elapsedRealtime();
+			long elapsed;
+			do {
+				c.run();
+				iterations++;
+				elapsed = SystemClock.elapsedRealtime() - start;
+			} while (elapsed < MIN_MEASURE_MS);
+			Debug.stopAllocCounting();
+			
+			long total = (long)iterations * listens;
+			return label + (total * 1000 / Math.max(1, elapsed)) + " listens/s, " 
+					+ (Debug.getThreadAllocCount() / total) + " allocations/listen";
+		} catch (OutOfMemoryError e) {
+			// The largest pages do not fit in a small heap
+			return label + "skipped, out of memory";
+		} catch (Exception e) {
+			Log.i(TAG, "Benchmark failed: " + label, e);
+			return label + "failed, " + e;
+		} finally {
+			try {
+				c.setUp(0);
+			} catch (Exception e) {
+				// Only releasing the input
+			}
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Thread pool whose workers can be held before starting their next
+ * task, e.g. while the network is down. Tasks already running carry on.
+ */
+public class PausableThreadPoolExecutor extends ThreadPoolExecutor {
+
+	private final ReentrantLock pauseLock = new ReentrantLock();
+	private final Condition unpaused = pauseLock.newCondition();
+	private boolean paused;
+	
+	public PausableThreadPoolExecutor(int poolSize, BlockingQueue<Runnable> queue, ThreadFactory threadFactory) {
+		super(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, queue, threadFactory);
+	}
+	
+	@Override
+	protected void beforeExecute(Thread t, Runnable r) {
+		super.beforeExecute(t, r);
+		pauseLock.lock();
+		try {
+			while (paused) {
+				unpaused.await();
+			}
+		} catch (InterruptedException e) {
+			// Shutting down, let the task see the interrupt
+			t.interrupt();
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+	
+	public void pause() {
+		pauseLock.lock();
+		try {
+			paused = true;
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+	
+	public void resume() {
+		pauseLock.lock();
+		try {
+			paused = false;
+			unpaused.signalAll();
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+	
+	public boolean isPaused() {
+		pauseLock.lock();
+		try {
+			return paused;
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+
+}
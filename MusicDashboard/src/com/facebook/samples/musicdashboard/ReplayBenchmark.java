@@ -0,0 +1,213 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.GridView;
+import android.widget.ListAdapter;
+import android.widget.Toast;
+
+/*
+ * End-to-end load benchmark against a GraphStubServer. Points the
+ * fetcher at the stub, starts a fresh fetch, and watches the GridView
+ * each frame to time the first song shown, the first cell with its
+ * image, and a full screen of cells with their images.
+ * 
+ * Caches are left as they are, so the first run after a cache clear
+ * is a cold start and later runs are warm.
+ */
+public class ReplayBenchmark {
+
+	public static final String TAG = "ReplayBenchmark";
+	
+	public static final String ACCESS_TOKEN = "replay";
+	
+	private static final long POLL_MS = 16;
+	private static final long TIMEOUT_MS = 120 * 1000;
+	// Size of the image served for every song
+	private static final int IMAGE_SIZE = 300;
+	private static final int IMAGE_COLOR = 0xff3b5998;
+	
+	private final Context context;
+	private final GridView gridView;
+	private final Handler handler = new Handler();
+	private GraphStubServer server;
+	private int listenCount;
+	// Rate limits the client had recognised before this run
+	private int startRateLimitCount;
+	
+	private long startTime;
+	private long firstSongMs = -1;
+	private long firstCellMs = -1;
+	private long fullGridMs = -1;
+	private boolean measuring;
+	
+	private final Runnable poll = new Runnable() {
+		public void run() {
+			poll();
+		}
+	};
+	
+	public ReplayBenchmark(Context context, GridView gridView) {
+		this.context = context.getApplicationContext();
+		this.gridView = gridView;
+	}
+	
+	/*
+	 * Start the stub server in the background, then point the fetcher
+	 * at it and run fetch on the main thread.
+	 */
+	public void start(final Runnable fetch) {
+		Resources r = context.getResources();
+		listenCount = r.getInteger(R.integer.replay_listen_count);
+		server = new GraphStubServer(listenCount, createImage());
+		server.setLatencyMs(r.getInteger(R.integer.replay_latency_ms));
+		server.setBytesPerSecond(r.getInteger(R.integer.replay_bandwidth_kbps) * 1000L / 8);
+		server.setErrorRate(r.getInteger(R.integer.replay_error_percent) / 100f);
+		
+		final GraphStubServer starting = server;
+		new Thread(TAG) {
+			@Override
+			public void run() {
+				try {
+					starting.start();
+				} catch (IOException e) {
+					Log.i(TAG, "Could not start the stub server", e);
+					return;
+				}
+				handler.post(new Runnable() {
+					public void run() {
+						if (server != starting) return;
+						MusicFetcher.setGraphEndpoint(starting.getEndpoint());
+						Metrics.reset();
+						startRateLimitCount = RetryPolicy.getRateLimitCount();
+						startTime = SystemClock.elapsedRealtime();
+						measuring = true;
+						fetch.run();
+						handler.postDelayed(poll, POLL_MS);
+					}
+				});
+			}
+		}.start();
+	}
+	
+	/*
+	 * Stop measuring and the stub server, and send requests back to the
+	 * Graph API.
+	 */
+	public void stop() {
+		measuring = false;
+		handler.removeCallbacks(poll);
+		if (server != null) {
+			final GraphStubServer stopping = server;
+			server = null;
+			MusicFetcher.setGraphEndpoint(null);
+			new Thread(TAG) {
+				@Override
+				public void run() {
+					stopping.stop();
+				}
+			}.start();
+		}
+	}
+	
+	private void poll() {
+		if (!measuring) return;
+		long elapsed = SystemClock.elapsedRealtime() - startTime;
+		
+		ListAdapter adapter = gridView.getAdapter();
+		int childCount = gridView.getChildCount();
+		if (adapter != null && adapter.getCount() > 0 && childCount > 0) {
+			if (firstSongMs < 0) firstSongMs = elapsed;
+			
+			// Count the cells on screen whose image is ready to draw
+			ImageCache imageCache = ImageCache.getInstance(context);
+			int first = gridView.getFirstVisiblePosition();
+			int loaded = 0;
+			for (int i = 0; i < childCount && first + i < adapter.getCount(); i++) {
+				Song song = (Song)adapter.getItem(first + i);
+				if (song.getImageUrl() != null && imageCache.getMemoryBitmap(song.getImageUrl()) != null) {
+					loaded++;
+				}
+			}
+			if (loaded > 0 && firstCellMs < 0) firstCellMs = elapsed;
+			
+			// Full once the cells reach the bottom, or every listen is shown
+			boolean screenFull = gridView.getChildAt(childCount - 1).getBottom() >= gridView.getHeight()
+					|| adapter.getCount() >= listenCount;
+			if (screenFull && loaded == childCount) {
+				fullGridMs = elapsed;
+				finish();
+				return;
+			}
+		}
+		
+		if (elapsed >= TIMEOUT_MS) {
+			finish();
+			return;
+		}
+		handler.postDelayed(poll, POLL_MS);
+	}
+	
+	private void finish() {
+		measuring = false;
+		String report = getReport();
+		Log.i(TAG, report);
+		for (String line : Metrics.snapshot(context).split("\n")) {
+			Log.i(TAG, line);
+		}
+		// Every rate limit the server sent should have been recognised,
+		// including gzipped ones
+		int detected = RetryPolicy.getRateLimitCount() - startRateLimitCount;
+		if (detected < server.getRateLimitCount()) {
+			Log.w(TAG, "Only " + detected + " of " + server.getRateLimitCount() 
+					+ " rate limit errors were recognised");
+		}
+		Toast.makeText(context, report, Toast.LENGTH_LONG).show();
+	}
+	
+	public String getReport() {
+		return "first song " + format(firstSongMs) + ", first cell " + format(firstCellMs) 
+				+ ", full grid " + format(fullGridMs) 
+				+ "; server " + server + "; connections " + ConnectionPool.getInstance(context);
+	}
+	
+	private static String format(long ms) {
+		return ms < 0 ? "not reached" : ms + "ms";
+	}
+	
+	/*
+	 * A plain JPEG to serve as every song's image.
+	 */
+	private static byte[] createImage() {
+		Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Bitmap.Config.RGB_565);
+		bitmap.eraseColor(IMAGE_COLOR);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 80, out);
+		bitmap.recycle();
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Byte buffer for reading an HTTP response body. Reads go straight into
+ * the backing array, which is sized up front from the Content-Length
+ * when the server sends one, so a typical response is read with a
+ * single allocation and decoded once.
+ */
+public class ResponseBuffer extends ByteArrayOutputStream {
+
+	// Initial size when the response length is unknown
+	private static final int DEFAULT_SIZE = 8 * 1024;
+	
+	private int allocations = 1;
+	
+	public ResponseBuffer(int contentLength) {
+		// Leave one spare byte so a known-length body does not grow
+		// the array when the end of stream is probed
+		super(contentLength > 0 ? contentLength + 1 : DEFAULT_SIZE);
+	}
+	
+	/*
+	 * Read the stream to its end into this buffer.
+	 */
+	public ResponseBuffer readFrom(InputStream in) throws IOException {
+		int bytesRead;
+		while (true) {
+			if (count == buf.length) {
+				byte[] grown = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, grown, 0, count);
+				buf = grown;
+				allocations++;
+			}
+			bytesRead = in.read(buf, count, buf.length - count);
+			if (bytesRead < 0) break;
+			count += bytesRead;
+		}
+		return this;
+	}
+	
+	/*
+	 * Number of backing arrays allocated, including the first.
+	 */
+	public int getAllocations() {
+		return allocations;
+	}
+
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/*
+ * Cache of Graph API response bodies and their validators (ETag and
+ * Last-Modified), so repeat requests can be made conditional and a 304
+ * Not Modified answered from disk. The validators are stored at the start
+ * of each cached file, so evicting a body evicts them too.
+ */
+public class ResponseCache {
+
+	public static final String TAG = "ResponseCache";
+	
+	// Directory under the app's cache dir that holds response bodies
+	private static final String DISK_CACHE_DIR = "responses";
+	// Preferences file that held the validators in older versions
+	private static final String LEGACY_PREFS_NAME = "response_validators";
+	// Cached files start with this, then the validators, then the body
+	private static final int FILE_MAGIC = 0x52435631;
+	
+	private static final String HEADER_ETAG = "ETag";
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	
+	private static ResponseCache instance;
+	
+	private final DiskCache diskCache;
+	
+	private final AtomicLong notModifiedCount = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+	
+	public static synchronized ResponseCache getInstance(Context context) {
+		if (instance == null) {
+			instance = new ResponseCache(context.getApplicationContext());
+		}
+		return instance;
+	}
+	
+	private ResponseCache(Context context) {
+		long diskBytes = context.getResources().getInteger(R.integer.response_cache_size_mb) * 1024L * 1024L;
+		diskCache = new DiskCache(new File(context.getCacheDir(), DISK_CACHE_DIR), diskBytes);
+		
+		SharedPreferences legacyValidators = context.getSharedPreferences(LEGACY_PREFS_NAME, Context.MODE_PRIVATE);
+		if (!legacyValidators.getAll().isEmpty()) {
+			legacyValidators.edit().clear().commit();
+		}
+	}
+	
+	/*
+	 * The validators and charset stored ahead of a cached body.
+	 */
+	private static class Validators {
+		final String etag;
+		final long lastModified;
+		final String charset;
+		
+		Validators(String etag, long lastModified, String charset) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.charset = charset;
+		}
+		
+		static Validators from(HttpURLConnection connection, String charset) {
+			return new Validators(connection.getHeaderField(HEADER_ETAG), connection.getLastModified(), charset);
+		}
+		
+		static Validators readFrom(DataInputStream in) throws IOException {
+			if (in.readInt() != FILE_MAGIC) throw new IOException("Not a cached response");
+			String etag = in.readUTF();
+			long lastModified = in.readLong();
+			String charset = in.readUTF();
+			return new Validators(etag.length() > 0 ? etag : null, lastModified, charset);
+		}
+		
+		void writeTo(OutputStream out) throws IOException {
+			DataOutputStream dataOut = new DataOutputStream(out);
+			dataOut.writeInt(FILE_MAGIC);
+			dataOut.writeUTF(etag != null ? etag : "");
+			dataOut.writeLong(lastModified);
+			dataOut.writeUTF(charset);
+			dataOut.flush();
+		}
+	}
+	
+	/*
+	 * A cached file opened at the start of its body.
+	 */
+	private static class CachedBody {
+		final Validators validators;
+		final DataInputStream in;
+		final long fileLength;
+		
+		CachedBody(Validators validators, DataInputStream in, long fileLength) {
+			this.validators = validators;
+			this.in = in;
+			this.fileLength = fileLength;
+		}
+	}
+	
+	/*
+	 * Open the cached file for a URL and read its validators. Returns
+	 * null if it is not cached, and drops it if it cannot be read.
+	 */
+	private CachedBody open(String urlSpec) {
+		File file = diskCache.get(urlSpec);
+		if (file == null) return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			return new CachedBody(Validators.readFrom(in), in, file.length());
+		} catch (IOException e) {
+			// Written by an older version, or damaged
+			closeQuietly(in);
+			diskCache.remove(urlSpec);
+			return null;
+		}
+	}
+	
+	/*
+	 * Make a request conditional if a body for its URL is cached.
+	 * Returns whether validators were added.
+	 */
+	public boolean addValidators(String urlSpec, HttpURLConnection connection) {
+		CachedBody cached = open(urlSpec);
+		if (cached == null) return false;
+		closeQuietly(cached.in);
+		
+		String etag = cached.validators.etag;
+		long lastModified = cached.validators.lastModified;
+		if (etag == null && lastModified == 0) return false;
+		
+		if (etag != null) {
+			connection.setRequestProperty(HEADER_IF_NONE_MATCH, etag);
+		}
+		if (lastModified != 0) {
+			connection.setIfModifiedSince(lastModified);
+		}
+		return true;
+	}
+	
+	/*
+	 * Open the cached body for a URL after a 304 response, or return
+	 * null if it has been evicted in the meantime.
+	 */
+	public InputStream openBody(String urlSpec) {
+		CachedBody cached = open(urlSpec);
+		if (cached == null) return null;
+		notModifiedCount.incrementAndGet();
+		bytesSaved.addAndGet(cached.fileLength);
+		return cached.in;
+	}
+	
+	/*
+	 * Read the cached body for a URL after a 304 response, or return
+	 * null if it has been evicted in the meantime.
+	 */
+	public String getBody(String urlSpec) throws IOException {
+		CachedBody cached = open(urlSpec);
+		if (cached == null) return null;
+		notModifiedCount.incrementAndGet();
+		bytesSaved.addAndGet(cached.fileLength);
+		try {
+			return new ResponseBuffer((int)cached.fileLength).readFrom(cached.in).toString(cached.validators.charset);
+		} finally {
+			cached.in.close();
+		}
+	}
+	
+	/*
+	 * Store a full response body, if the server sent validators for it.
+	 */
+	public void put(String urlSpec, HttpURLConnection connection, ResponseBuffer body, String charset) {
+		if (!hasValidators(connection)) return;
+		OutputStream out = null;
+		File tempFile = null;
+		try {
+			tempFile = createTempFile(urlSpec);
+			out = new FileOutputStream(tempFile);
+			Validators.from(connection, charset).writeTo(out);
+			body.writeTo(out);
+			out.close();
+			out = null;
+			commit(urlSpec, tempFile);
+		} catch (IOException e) {
+			Log.i(TAG, "Could not cache response for: " + urlSpec, e);
+			if (tempFile != null) tempFile.delete();
+		} finally {
+			closeQuietly(out);
+		}
+	}
+	
+	/*
+	 * Wrap a response stream so that the body is cached as it is read.
+	 * The body is stored when the returned stream is closed.
+	 */
+	public InputStream cacheStream(String urlSpec, HttpURLConnection connection, InputStream in, String charset) {
+		if (!hasValidators(connection)) return in;
+		try {
+			return new CachingInputStream(in, urlSpec, connection, charset);
+		} catch (IOException e) {
+			Log.i(TAG, "Could not cache response for: " + urlSpec, e);
+			return in;
+		}
+	}
+	
+	/*
+	 * Number of requests answered from the cache with a 304.
+	 */
+	public long getNotModifiedCount() {
+		return notModifiedCount.get();
+	}
+	
+	/*
+	 * Body bytes that 304 responses saved downloading.
+	 */
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+	
+	@Override
+	public String toString() {
+		return TAG + "[notModified=" + notModifiedCount.get() + ", bytesSaved=" + bytesSaved.get() + "] " + diskCache;
+	}
+	
+	private static boolean hasValidators(HttpURLConnection connection) {
+		return connection.getHeaderField(HEADER_ETAG) != null || connection.getLastModified() != 0;
+	}
+	
+	private File createTempFile(String urlSpec) throws IOException {
+		return File.createTempFile("download", DiskCache.TEMP_SUFFIX, diskCache.getFile(urlSpec).getParentFile());
+	}
+	
+	/*
+	 * Move a fully written file into place.
+	 */
+	private void commit(String urlSpec, File tempFile) {
+		if (!tempFile.renameTo(diskCache.getFile(urlSpec))) {
+			tempFile.delete();
+			return;
+		}
+		diskCache.put(urlSpec);
+	}
+	
+	private static void closeQuietly(OutputStream out) {
+		if (out == null) return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// ignored
+		}
+	}
+	
+	private static void closeQuietly(InputStream in) {
+		if (in == null) return;
+		try {
+			in.close();
+		} catch (IOException e) {
+			// ignored
+		}
+	}
+	
+	/*
+	 * Copies everything read through it into a temporary file, which is
+	 * committed to the cache on close if the reader reached the end of
+	 * the body.
+	 */
+	private class CachingInputStream extends FilterInputStream {
+		private final String urlSpec;
+		private final File tempFile;
+		private OutputStream out;
+		private boolean complete;
+		
+		CachingInputStream(InputStream in, String urlSpec, HttpURLConnection connection, String charset) throws IOException {
+			super(in);
+			this.urlSpec = urlSpec;
+			tempFile = createTempFile(urlSpec);
+			out = new FileOutputStream(tempFile);
+			try {
+				Validators.from(connection, charset).writeTo(out);
+			} catch (IOException e) {
+				abandon();
+				throw e;
+			}
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0) {
+				complete = true;
+			} else {
+				copy(new byte[] { (byte)b }, 0, 1);
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int bytesRead = super.read(buffer, offset, count);
+			if (bytesRead < 0) {
+				complete = true;
+			} else {
+				copy(buffer, offset, bytesRead);
+			}
+			return bytesRead;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			// Skipped bytes would leave a hole in the cached copy
+			abandon();
+			return super.skip(n);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				// A reader that stopped early may have rejected the body,
+				// and the rest is not worth downloading just to cache it
+				if (out != null) {
+					closeQuietly(out);
+					out = null;
+					if (complete) {
+						commit(urlSpec, tempFile);
+					} else {
+						tempFile.delete();
+					}
+				}
+			}
+		}
+		
+		private void copy(byte[] buffer, int offset, int count) {
+			if (out == null) return;
+			try {
+				out.write(buffer, offset, count);
+			} catch (IOException e) {
+				Log.i(TAG, "Could not cache response for: " + urlSpec, e);
+				abandon();
+			}
+		}
+		
+		private void abandon() {
+			if (out == null) return;
+			closeQuietly(out);
+			out = null;
+			tempFile.delete();
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+
+/*
+ * Retries failed requests a bounded number of times, with jittered
+ * exponential backoff, waiting at least as long as a rate limited
+ * response asks. Requests go through the host's CircuitBreaker, so a
+ * host that is down is not retried against.
+ */
+public class RetryPolicy {
+
+	public static final String TAG = "RetryPolicy";
+	
+	// Attempts per request, including the first
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long BASE_DELAY_MS = 500;
+	private static final long MAX_DELAY_MS = 8000;
+	// Give up rather than hold a worker for longer than this
+	private static final long MAX_RETRY_AFTER_MS = 60 * 1000;
+	// Sleeps are cut into slices so a cancel is noticed promptly
+	private static final long SLEEP_SLICE_MS = 100;
+	
+	private static final Random random = new Random();
+	private static final AtomicInteger retryCount = new AtomicInteger();
+	private static final AtomicInteger rateLimitCount = new AtomicInteger();
+	
+	/*
+	 * A request to make, and possibly make again.
+	 */
+	public static abstract class Request<T> {
+		public abstract T execute() throws IOException;
+		
+		/*
+		 * Whether the request can be made again after it failed, e.g.
+		 * not once part of a response has been handed on.
+		 */
+		public boolean canRetry() {
+			return true;
+		}
+	}
+	
+	/*
+	 * Make a request to a URL, retrying transient failures.
+	 */
+	public static <T> T execute(String urlSpec, CancellationToken token, Request<T> request) throws IOException {
+		CircuitBreaker breaker = CircuitBreaker.forUrl(urlSpec);
+		for (int attempt = 1; ; attempt++) {
+			breaker.checkAllowed();
+			long retryAfterMs = 0;
+			try {
+				T result = request.execute();
+				breaker.recordSuccess();
+				return result;
+			} catch (CancellationToken.CancelledException e) {
+				breaker.recordAbandoned();
+				throw e;
+			} catch (HttpStatusException e) {
+				if (!e.isTransient()) {
+					// The host is up, the request itself is bad
+					breaker.recordSuccess();
+					throw e;
+				}
+				retryAfterMs = e.getRetryAfterMs();
+				if (e.isRateLimited()) {
+					rateLimitCount.incrementAndGet();
+				}
+				if (e.isRateLimited() && retryAfterMs == 0) {
+					// Rate limited without a hint, back off as long as the
+					// breaker would
+					retryAfterMs = CircuitBreaker.OPEN_MS;
+				}
+				breaker.recordFailure(retryAfterMs);
+				if (!shouldRetry(attempt, retryAfterMs, request)) throw e;
+			} catch (IOException e) {
+				breaker.recordFailure(0);
+				if (!shouldRetry(attempt, 0, request)) throw e;
+			} catch (RuntimeException e) {
+				// Says nothing about the host, but a half-open trial must
+				// not stay in flight
+				breaker.recordAbandoned();
+				throw e;
+			}
+			
+			retryCount.incrementAndGet();
+			sleep(getDelay(attempt, retryAfterMs), token);
+		}
+	}
+	
+	private static boolean shouldRetry(int attempt, long retryAfterMs, Request<?> request) {
+		return attempt < MAX_ATTEMPTS && retryAfterMs <= MAX_RETRY_AFTER_MS && request.canRetry();
+	}
+	
+	/*
+	 * Delay before the attempt after the given one: half of an
+	 * exponentially growing cap plus a random part of the other half,
+	 * so that workers that failed together do not retry together.
+	 */
+	static long getDelay(int attempt, long retryAfterMs) {
+		long cap = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << (attempt - 1));
+		long delay = cap / 2 + (long)(random.nextDouble() * (cap / 2));
+		return Math.max(delay, retryAfterMs);
+	}
+	
+	/*
+	 * Sleep, giving up if the token is cancelled or the thread is
+	 * interrupted. Any HostLimiter permits the thread holds are given
+	 * back meanwhile.
+	 */
+	private static void sleep(long ms, CancellationToken token) throws CancellationToken.CancelledException {
+		List<Semaphore> suspended = HostLimiter.suspendPermits();
+		try {
+			sleepFor(ms, token);
+		} finally {
+			HostLimiter.resumePermits(suspended);
+		}
+	}
+	
+	private static void sleepFor(long ms, CancellationToken token) throws CancellationToken.CancelledException {
+		long end = SystemClock.elapsedRealtime() + ms;
+		while (true) {
+			token.throwIfCancelled();
+			long remaining = end - SystemClock.elapsedRealtime();
+			if (remaining <= 0) return;
+			try {
+				Thread.sleep(Math.min(remaining, SLEEP_SLICE_MS));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationToken.CancelledException();
+			}
+		}
+	}
+	
+	/*
+	 * Number of requests made again after a failure.
+	 */
+	public static int getRetryCount() {
+		return retryCount.get();
+	}
+	
+	/*
+	 * Number of responses recognised as rate limits.
+	 */
+	public static int getRateLimitCount() {
+		return rateLimitCount.get();
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * Coalesces concurrent operations on the same key. The first caller to
+ * join a key leads: it does the work and hands the result to finish().
+ * Callers that join while the work is in flight wait for that result
+ * instead of repeating the work.
+ */
+public class SingleFlight<K, V> {
+
+	private final HashMap<K, Flight<V>> inFlight = new HashMap<K, Flight<V>>();
+	private int sharedCount;
+	
+	/*
+	 * One in-flight operation.
+	 */
+	public static class Flight<V> {
+		private final Thread leader = Thread.currentThread();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private V result;
+		
+		/*
+		 * Whether the calling thread must do the work and call finish().
+		 */
+		public boolean isLeader() {
+			return leader == Thread.currentThread();
+		}
+		
+		/*
+		 * Wait for the leader's result. Returns null if the leader failed
+		 * or the wait was interrupted.
+		 */
+		public V await() {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			return result;
+		}
+	}
+	
+	/*
+	 * Join the operation for a key, leading it if none is in flight.
+	 */
+	public synchronized Flight<V> join(K key) {
+		Flight<V> flight = inFlight.get(key);
+		if (flight != null) {
+			sharedCount++;
+			return flight;
+		}
+		flight = new Flight<V>();
+		inFlight.put(key, flight);
+		return flight;
+	}
+	
+	/*
+	 * Publish a leader's result, null on failure, to everyone waiting.
+	 * Leaders must always call this, even when the work fails.
+	 */
+	public void finish(K key, Flight<V> flight, V result) {
+		synchronized (this) {
+			if (inFlight.get(key) == flight) {
+				inFlight.remove(key);
+			}
+		}
+		flight.result = result;
+		flight.done.countDown();
+	}
+	
+	/*
+	 * Number of joins that shared an operation already in flight.
+	 */
+	public synchronized int getSharedCount() {
+		return sharedCount;
+	}
+
+}
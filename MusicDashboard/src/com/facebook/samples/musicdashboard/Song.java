@@ -16,12 +16,11 @@
 
 package com.facebook.samples.musicdashboard;
 
-import java.io.File;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 
@@ -45,14 +44,23 @@ public class Song {
 	private String siteName;
 	private String musician;
 	private String audioUrl;
-	
-	private Drawable drawable;
+	// Size of the full image, 0 until known
+	private int imageWidth;
+	private int imageHeight;
+	// When the song was listened to, in milliseconds, 0 if unknown
+	private long listenTime;
 	
 	public Song(int resId, String title) {
 		this.resId = resId;
 		this.title = title;
 	}
 	
+	public Song(String id, String url, String title) {
+		this.id = id;
+		this.url = url;
+		this.title = title;
+	}
+	
 	public Song(JSONObject json) throws JSONException {		
 		JSONObject jsonSong = json.getJSONObject(JSON_DATA).getJSONObject(JSON_SONG);
 		
@@ -62,27 +70,32 @@ public class Song {
 	}
 	
 	public Drawable getDrawable(Context c) {
-		// Return a cached value if it exists
-        if (drawable != null)
-            return drawable;
-
-        File file = getLocalFile(c);
-
-        // Cache the song image
-        if (file != null && file.exists()) {
-            drawable = new BitmapDrawable(c.getResources(), file.getPath());
-            return drawable;
+		// Song images are shared through the image cache
+		Bitmap bitmap = null;
+		if (imageUrl != null) {
+			bitmap = ImageCache.getInstance(c).getBitmap(imageUrl);
+		}
+		
+        if (bitmap != null) {
+            return new BitmapDrawable(c.getResources(), bitmap);
         } else {
             return c.getResources().getDrawable(resId);
         }
     }
 	
-	public File getLocalFile(Context c) {
-        if (null == url) return null;
-
-        String fileName = getId();
-        return new File(c.getFilesDir() + "/" + fileName);
-    }
+	/*
+	 * Like getDrawable, but only returns an image that is already
+	 * decoded in memory, or null. Safe to call on the main thread.
+	 */
+	public Drawable getCachedDrawable(Context c) {
+		if (imageUrl == null) return null;
+		Bitmap bitmap = ImageCache.getInstance(c).getMemoryBitmap(imageUrl);
+		return bitmap != null ? new BitmapDrawable(c.getResources(), bitmap) : null;
+	}
+	
+	public Drawable getPlaceholderDrawable(Context c) {
+		return c.getResources().getDrawable(resId);
+	}
 	
 	public String toString() {
 		return getTitle();
@@ -159,5 +172,26 @@ public class Song {
 	public void setAudioUrl(String audioUrl) {
 		this.audioUrl = audioUrl;
 	}
+
+	public int getImageWidth() {
+		return imageWidth;
+	}
+
+	public int getImageHeight() {
+		return imageHeight;
+	}
+
+	public void setImageSize(int imageWidth, int imageHeight) {
+		this.imageWidth = imageWidth;
+		this.imageHeight = imageHeight;
+	}
+
+	public long getListenTime() {
+		return listenTime;
+	}
+
+	public void setListenTime(long listenTime) {
+		this.listenTime = listenTime;
+	}
 	
 }
@@ -16,16 +16,53 @@
 
 package com.facebook.samples.musicdashboard;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
 
+/*
+ * Coordinates song info and image downloads. Messages are sequenced on
+ * this thread, while the network work itself runs on a bounded pool of
+ * worker threads, with a cap on concurrent requests per host. Queued
+ * work is ordered by the GridView's visible range.
+ */
 public class SongFetcherThread extends HandlerThread {
 
 	private static final int INFO_LOAD = 0;
 	private static final int IMAGE_LOAD = 1;
 	private static final int IMAGE_CLEAR = 2;
+	private static final int INFO_DONE = 3;
+	private static final int INFO_FLUSH = 4;
+	private static final int VISIBLE_RANGE = 5;
+	private static final int HEAD_INSERT = 6;
+	private static final int SONG_CANCEL = 7;
+	private static final int INFO_FAILED = 8;
+	private static final int IMAGE_FAILED = 9;
+	private static final int RETRY_FAILED = 10;
+	
+	// How long song info requests are collected before a batched lookup
+	private static final long INFO_BATCH_DELAY_MS = 50;
+	// Failed downloads are tried again after this long, or as soon as
+	// the network comes back, up to a limit per song
+	private static final long FAILED_RETRY_DELAY_MS = CircuitBreaker.OPEN_MS;
+	private static final int MAX_FAILED_RETRIES = 3;
 	
 	Context context;
 	MusicFetcher fetcher;
@@ -33,12 +70,45 @@ public class SongFetcherThread extends HandlerThread {
 	SongImageDownloadListener listener;
 	Handler handler;
 	
+	PausableThreadPoolExecutor workers;
+	HostLimiter hostLimiter;
+	ViewportScheduler scheduler;
+	
+	// Cancelled when this thread quits, which aborts every download it
+	// started. Each song's image download gets a child token so it can
+	// be cancelled on its own.
+	final CancellationToken generation = new CancellationToken();
+	final HashMap<Song, CancellationToken> songTokens = new HashMap<Song, CancellationToken>();
+	
+	// Songs whose info download is in progress, and songs whose image
+	// download is waiting on that info, with their position keys.
+	// Only accessed on this thread.
+	HashSet<Song> pendingInfo = new HashSet<Song>();
+	HashMap<Song, Integer> waitingImage = new HashMap<Song, Integer>();
+	// Songs collected for the next batched info lookup
+	ArrayList<Song> infoBatch = new ArrayList<Song>();
+	ArrayList<Integer> infoBatchKeys = new ArrayList<Integer>();
+	// Songs whose downloads failed, with their position keys, and how
+	// often each has been tried again. Only accessed on this thread.
+	HashMap<Song, Integer> failedInfo = new HashMap<Song, Integer>();
+	HashMap<Song, Integer> failedImage = new HashMap<Song, Integer>();
+	HashMap<Song, Integer> failedRetries = new HashMap<Song, Integer>();
+	// Pauses the workers while there is no network
+	BroadcastReceiver connectivityReceiver;
+	
+	// Songs inserted at the head of the list and the last visible range
+	// reported. Only accessed on the main thread.
+	int headInsertions;
+	int visibleFirst = -1;
+	int visibleLast = -1;
+	
 	/*
 	 * Callback listener for song changes such as an
-	 * image update.
+	 * image update. Resized is true when the song's image size became
+	 * known.
 	 */
 	public interface SongImageDownloadListener {
-		public void onSongImageUpdated();
+		public void onSongImageUpdated(Song song, boolean resized);
 	}
 	
 	public SongFetcherThread(String name, Context context, Handler listenerHandler, SongImageDownloadListener listener) {
@@ -47,60 +117,301 @@ public class SongFetcherThread extends HandlerThread {
 		this.context = context;
         this.listenerHandler = listenerHandler;
         this.listener = listener;
-        fetcher = new MusicFetcher(context);
+        fetcher = new MusicFetcher(context, generation);
+        
+        // Size the worker pool and per-host limit from resources
+        Resources r = context.getResources();
+        int poolSize = Math.max(1, r.getInteger(R.integer.fetcher_pool_size));
+        hostLimiter = new HostLimiter(r.getInteger(R.integer.fetcher_max_requests_per_host));
+        scheduler = new ViewportScheduler();
+        workers = new PausableThreadPoolExecutor(poolSize, scheduler.getQueue(), new WorkerThreadFactory(name));
 	}
 	
+	/*
+	 * Starts the thread and waits for its looper, so requests can be
+	 * made as soon as this returns.
+	 */
 	@Override
-	protected void onLooperPrepared() {
+	public synchronized void start() {
+		super.start();
 		handler = new Handler(getLooper()) {
 			@Override
 			public void handleMessage(Message msg) {
 				if (msg.what == INFO_LOAD) {
-					// Fetch detailed song info
+					// Collect the song for a batched info lookup
 					Song song = (Song)msg.obj;
-					fetcher.downloadSongInfo(song);
+					pendingInfo.add(song);
+					infoBatch.add(song);
+					infoBatchKeys.add(msg.arg1);
+					if (infoBatch.size() >= MusicFetcher.MAX_IDS_PER_REQUEST) {
+						flushInfoBatch();
+					} else if (!hasMessages(INFO_FLUSH)) {
+						sendEmptyMessageDelayed(INFO_FLUSH, INFO_BATCH_DELAY_MS);
+					}
+				} else if (msg.what == INFO_FLUSH) {
+					flushInfoBatch();
 				} else if (msg.what == IMAGE_LOAD) {
-					// Fetch the image for a song
+					// Fetch the image for a song, once its info is known
 					Song song = (Song)msg.obj;
-					fetcher.downloadSongImage(song);
-					song.getDrawable(context);
+					if (pendingInfo.contains(song)) {
+						waitingImage.put(song, msg.arg1);
+					} else {
+						execute(new ImageTask(song, msg.arg1));
+					}
+				} else if (msg.what == INFO_DONE) {
+					// Release an image download held back on this song's info
+					Song song = (Song)msg.obj;
+					pendingInfo.remove(song);
+					Integer positionKey = waitingImage.remove(song);
+					if (positionKey != null) {
+						execute(new ImageTask(song, positionKey));
+					}
 				} else if (msg.what == IMAGE_CLEAR) {
-					// Clear the cache
-					fetcher.clearCache();
+					// Drop queued and in progress image downloads, then 
+					// clear what older versions left, the first time only
+					waitingImage.clear();
+					failedImage.clear();
+					for (Runnable task : workers.getQueue().toArray(new Runnable[0])) {
+						if (task instanceof ImageTask) {
+							workers.remove(task);
+						}
+					}
+					synchronized (songTokens) {
+						for (CancellationToken token : songTokens.values()) {
+							token.cancel();
+						}
+						songTokens.clear();
+					}
+					fetcher.clearLegacyImages();
+				} else if (msg.what == VISIBLE_RANGE) {
+					// Re-rank queued work around what is on screen
+					scheduler.setVisibleRange(msg.arg1, msg.arg2);
+				} else if (msg.what == HEAD_INSERT) {
+					scheduler.addHeadInsertions(msg.arg1);
+				} else if (msg.what == INFO_FAILED) {
+					addFailed(failedInfo, (Song)msg.obj, msg.arg1);
+				} else if (msg.what == IMAGE_FAILED) {
+					addFailed(failedImage, (Song)msg.obj, msg.arg1);
+				} else if (msg.what == RETRY_FAILED) {
+					retryFailed();
+				} else if (msg.what == SONG_CANCEL) {
+					// Drop the song's image download if it has not started
+					Song song = (Song)msg.obj;
+					waitingImage.remove(song);
+					failedImage.remove(song);
+					for (Runnable task : workers.getQueue().toArray(new Runnable[0])) {
+						if (task instanceof ImageTask && ((ImageTask)task).song == song) {
+							workers.remove(task);
+						}
+					}
 				}
-				
-				if (listener != null && listenerHandler != null) {
-					// Call the listener on the main thread.
-                    listenerHandler.post(new Runnable() {
-                        public void run() {
-                            listener.onSongImageUpdated();
-                        }
-                    });
-                }
 			}
 		};
+		
+		// Hold the workers while the network is down. The broadcast is
+		// sticky, so the current state arrives straight away.
+		connectivityReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context c, Intent intent) {
+				networkChanged();
+			}
+		};
+		context.registerReceiver(connectivityReceiver, 
+				new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), null, handler);
+	}
+	
+	/*
+	 * Pause or resume the workers to match the network state. When it
+	 * comes back, failed downloads are tried again straight away.
+	 */
+	void networkChanged() {
+		ConnectivityManager connectivity = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = connectivity.getActiveNetworkInfo();
+		if (network == null || !network.isConnected()) {
+			workers.pause();
+		} else if (workers.isPaused()) {
+			workers.resume();
+			CircuitBreaker.resetAll();
+			retryFailed();
+		}
+	}
+	
+	/*
+	 * Note a failed download to try again later, unless it has been
+	 * tried too often.
+	 */
+	void addFailed(HashMap<Song, Integer> failed, Song song, int positionKey) {
+		Integer retries = failedRetries.get(song);
+		if (retries != null && retries >= MAX_FAILED_RETRIES) return;
+		failed.put(song, positionKey);
+		if (!handler.hasMessages(RETRY_FAILED)) {
+			handler.sendEmptyMessageDelayed(RETRY_FAILED, FAILED_RETRY_DELAY_MS);
+		}
+	}
+	
+	/*
+	 * Queue the failed downloads again. A song whose info failed gets
+	 * its image downloaded once the info is in.
+	 */
+	void retryFailed() {
+		handler.removeMessages(RETRY_FAILED);
+		if (workers.isPaused()) return;
+		for (Map.Entry<Song, Integer> entry : failedInfo.entrySet()) {
+			Song song = entry.getKey();
+			countRetry(song);
+			pendingInfo.add(song);
+			waitingImage.put(song, entry.getValue());
+			infoBatch.add(song);
+			infoBatchKeys.add(entry.getValue());
+		}
+		failedInfo.clear();
+		flushInfoBatch();
+		for (Map.Entry<Song, Integer> entry : failedImage.entrySet()) {
+			countRetry(entry.getKey());
+			execute(new ImageTask(entry.getKey(), entry.getValue()));
+		}
+		failedImage.clear();
+	}
+	
+	private void countRetry(Song song) {
+		Integer retries = failedRetries.get(song);
+		failedRetries.put(song, retries == null ? 1 : retries + 1);
+	}
+	
+	/*
+	 * Queue a task for the workers.
+	 */
+	void execute(Runnable task) {
+		workers.execute(task);
+		Metrics.QUEUE_DEPTH.record(workers.getQueue().size());
+	}
+	
+	/*
+	 * Hands the collected songs to a worker as one batched info lookup.
+	 */
+	void flushInfoBatch() {
+		handler.removeMessages(INFO_FLUSH);
+		if (infoBatch.isEmpty()) return;
+		execute(new InfoTask(infoBatch, infoBatchKeys));
+		infoBatch = new ArrayList<Song>();
+		infoBatchKeys = new ArrayList<Integer>();
+	}
+	
+	/*
+	 * Calls the listener on the main thread for the songs that changed,
+	 * unless this thread has quit by then.
+	 */
+	void notifyListener(final List<Song> songs, final boolean[] resized) {
+		if (listener != null && listenerHandler != null && !generation.isCancelled()) {
+            listenerHandler.post(new Runnable() {
+                public void run() {
+                    if (generation.isCancelled()) return;
+                    for (int i = 0; i < songs.size(); i++) {
+                    	listener.onSongImageUpdated(songs.get(i), resized[i]);
+                    }
+                }
+            });
+        }
 	}
 	
 	/*
-	 * Method to initiate the song details download.
+	 * Get the token for a song's image download, creating it if needed.
 	 */
-	public void downloadSongInfo(Song song) {
+	CancellationToken getSongToken(Song song) {
+		synchronized (songTokens) {
+			CancellationToken token = songTokens.get(song);
+			if (token == null) {
+				token = new CancellationToken(generation);
+				songTokens.put(song, token);
+			}
+			return token;
+		}
+	}
+	
+	/*
+	 * Forget a song's token once its download is over.
+	 */
+	void releaseSongToken(Song song, CancellationToken token) {
+		synchronized (songTokens) {
+			if (songTokens.get(song) == token) {
+				songTokens.remove(song);
+			}
+		}
+	}
+	
+	/*
+	 * Token cancelled when this thread quits. Fetches made on its behalf
+	 * elsewhere, such as listens pages, should use it too.
+	 */
+	public CancellationToken getCancellationToken() {
+		return generation;
+	}
+	
+	/*
+	 * Method to initiate the song details download for the song
+	 * at a GridView position.
+	 */
+	public void downloadSongInfo(Song song, int position) {
         handler
-            .obtainMessage(INFO_LOAD, song)
+            .obtainMessage(INFO_LOAD, position - headInsertions, 0, song)
             .sendToTarget();
     }
 	
 	/*
-	 * Method to initiate the song image download.
+	 * Method to initiate the song image download for the song
+	 * at a GridView position.
 	 */
-	public void downloadSongImage(Song song) {
+	public void downloadSongImage(Song song, int position) {
         handler
-            .obtainMessage(IMAGE_LOAD, song)
+            .obtainMessage(IMAGE_LOAD, position - headInsertions, 0, song)
             .sendToTarget();
     }
+	
+	/*
+	 * Method to report the GridView's visible range, so that queued
+	 * downloads for those songs run first.
+	 */
+	public void setVisibleRange(int first, int last) {
+		if (first == visibleFirst && last == visibleLast) return;
+		visibleFirst = first;
+		visibleLast = last;
+		handler
+			.obtainMessage(VISIBLE_RANGE, first, last)
+			.sendToTarget();
+	}
+	
+	/*
+	 * Method to report songs inserted at the head of the list, which
+	 * moves every queued download further down. Call before requesting
+	 * downloads for the inserted songs.
+	 */
+	public void songsInserted(int count) {
+		headInsertions += count;
+		handler
+			.obtainMessage(HEAD_INSERT, count, 0)
+			.sendToTarget();
+	}
+
+	/*
+	 * Method to cancel a song's image download, whether it is queued or
+	 * already in progress. A later request downloads it afresh.
+	 */
+	public void cancelSong(Song song) {
+		CancellationToken token;
+		synchronized (songTokens) {
+			token = songTokens.remove(song);
+		}
+		if (token != null) {
+			token.cancel();
+		}
+		handler
+			.obtainMessage(SONG_CANCEL, song)
+			.sendToTarget();
+	}
 
 	/*
-	 * Method to initiate the clearing of the cache.
+	 * Method to drop every image download, and clear the image files
+	 * of older versions if that has not been done yet.
 	 */
     public void clearSongImages() {
         handler.removeMessages(IMAGE_LOAD);
@@ -108,5 +419,153 @@ public class SongFetcherThread extends HandlerThread {
             .obtainMessage(IMAGE_CLEAR)
             .sendToTarget();
     }
+    
+    /*
+     * Stops the coordinator and aborts any worker downloads. Nothing is
+     * delivered to the listener afterwards.
+     */
+    @Override
+    public boolean quit() {
+    	if (connectivityReceiver != null) {
+    		context.unregisterReceiver(connectivityReceiver);
+    		connectivityReceiver = null;
+    	}
+    	generation.cancel();
+    	workers.shutdownNow();
+    	return super.quit();
+    }
+    
+    /*
+     * Worker task that fetches detailed info for a batch of songs.
+     */
+    private class InfoTask implements ViewportScheduler.Task {
+    	final ArrayList<Song> songs;
+    	final int[] positionKeys;
+    	final long queuedAt = System.nanoTime();
+    	
+    	InfoTask(ArrayList<Song> songs, ArrayList<Integer> positionKeys) {
+    		this.songs = songs;
+    		this.positionKeys = new int[positionKeys.size()];
+    		for (int i = 0; i < this.positionKeys.length; i++) {
+    			this.positionKeys[i] = positionKeys.get(i);
+    		}
+    	}
+    	
+    	public int[] getPositionKeys() {
+    		return positionKeys;
+    	}
+    	
+    	public void run() {
+    		long start = System.nanoTime();
+    		Metrics.QUEUE_WAIT.record((start - queuedAt) / 1000);
+    		try {
+    			fetch();
+    		} finally {
+    			Metrics.INFO_TASK.recordSince(start);
+    		}
+    	}
+    	
+    	private void fetch() {
+    		boolean[] resized = new boolean[songs.size()];
+    		for (int i = 0; i < resized.length; i++) {
+    			resized[i] = songs.get(i).getImageWidth() <= 0;
+    		}
+    		String endpoint = MusicFetcher.getGraphEndpoint();
+    		if (hostLimiter.acquire(endpoint)) {
+    			try {
+    				fetcher.downloadSongInfo(songs);
+    			} finally {
+    				hostLimiter.release(endpoint);
+    			}
+    		}
+    		if (generation.isCancelled()) return;
+    		for (int i = 0; i < resized.length; i++) {
+    			Song song = songs.get(i);
+    			resized[i] &= song.getImageWidth() > 0;
+    			if (song.getImageUrl() == null) {
+    				// Not looked up, try again later
+    				handler.obtainMessage(INFO_FAILED, positionKeys[i], 0, song).sendToTarget();
+    			}
+    			handler.obtainMessage(INFO_DONE, song).sendToTarget();
+    		}
+    		notifyListener(songs, resized);
+    	}
+    }
+    
+    /*
+     * Worker task that fetches and decodes a song's image.
+     */
+    private class ImageTask implements ViewportScheduler.Task {
+    	final Song song;
+    	final int[] positionKeys;
+    	final long queuedAt = System.nanoTime();
+    	
+    	ImageTask(Song song, int positionKey) {
+    		this.song = song;
+    		this.positionKeys = new int[] { positionKey };
+    	}
+    	
+    	public int[] getPositionKeys() {
+    		return positionKeys;
+    	}
+    	
+    	public void run() {
+    		long start = System.nanoTime();
+    		Metrics.QUEUE_WAIT.record((start - queuedAt) / 1000);
+    		try {
+    			fetch();
+    		} finally {
+    			Metrics.IMAGE_TASK.recordSince(start);
+    		}
+    	}
+    	
+    	private void fetch() {
+    		String imageUrl = song.getImageUrl();
+    		boolean hadSize = song.getImageWidth() > 0;
+    		CancellationToken token = getSongToken(song);
+    		try {
+    			if (imageUrl != null && !token.isCancelled() && hostLimiter.acquire(imageUrl)) {
+    				try {
+    					fetcher.downloadSongImage(song, token);
+    				} finally {
+    					hostLimiter.release(imageUrl);
+    				}
+    				// No point decoding an image nobody is waiting for
+    				if (token.isCancelled()) return;
+    				if (!ImageCache.getInstance(context).hasImage(imageUrl)) {
+    					// Not downloaded, try again later
+    					handler.obtainMessage(IMAGE_FAILED, positionKeys[0], 0, song).sendToTarget();
+    					return;
+    				}
+    				song.getDrawable(context);
+    			}
+    		} finally {
+    			releaseSongToken(song, token);
+    		}
+    		notifyListener(Collections.singletonList(song), 
+    				new boolean[] { !hadSize && song.getImageWidth() > 0 });
+    	}
+    }
+    
+    /*
+     * Names the worker threads and runs them at background priority.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+    	private final String name;
+    	private final AtomicInteger count = new AtomicInteger(1);
+    	
+    	WorkerThreadFactory(String name) {
+    		this.name = name;
+    	}
+    	
+    	public Thread newThread(final Runnable r) {
+    		return new Thread(new Runnable() {
+    			public void run() {
+    				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    				r.run();
+    			}
+    		}, name + "-worker-" + count.getAndIncrement());
+    	}
+    }
 
 }
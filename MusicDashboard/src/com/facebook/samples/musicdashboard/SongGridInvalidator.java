@@ -0,0 +1,175 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.util.HashSet;
+
+import android.os.Build;
+import android.os.Handler;
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.GridView;
+
+/*
+ * Batches song change notifications for the GridView into one pass per
+ * frame. Songs whose image changed only have their visible cells bound
+ * again, and the whole data set is invalidated only when songs were
+ * added or a row height may have changed. Only used on the main thread.
+ */
+public class SongGridInvalidator {
+
+	public static final String TAG = "SongGridInvalidator";
+	
+	// Frame interval for devices without postOnAnimation
+	private static final long FRAME_DELAY_MS = 16;
+	
+	private final Handler handler = new Handler();
+	private GridView gridView;
+	private ArrayAdapter<Song> adapter;
+	
+	// Songs changed since the last pass, and whether any of them changed
+	// size or songs were added, which moves the rows around
+	private final HashSet<Song> changedSongs = new HashSet<Song>();
+	private boolean layoutChanged;
+	private boolean scheduled;
+	
+	private int notificationCount;
+	private int appendCount;
+	private int passCount;
+	private int rebindCount;
+	
+	private final Runnable pass = new Runnable() {
+		public void run() {
+			scheduled = false;
+			apply();
+		}
+	};
+	
+	/*
+	 * Set the GridView and adapter to update. The GridView may be null
+	 * until it has been created.
+	 */
+	public void setTarget(GridView gridView, ArrayAdapter<Song> adapter) {
+		// A pass posted to a detached GridView may never run, so drop it
+		// or no pass would be scheduled again
+		cancel();
+		this.gridView = gridView;
+		this.adapter = adapter;
+	}
+	
+	/*
+	 * Note that a song's info or image changed. Resized means its image
+	 * size became known, so its row height may change.
+	 */
+	public void songChanged(Song song, boolean resized) {
+		notificationCount++;
+		changedSongs.add(song);
+		layoutChanged |= resized;
+		schedule();
+	}
+	
+	/*
+	 * Note that songs were added to the end of the adapter's list.
+	 */
+	public void songsAppended() {
+		appendCount++;
+		layoutChanged = true;
+		schedule();
+	}
+	
+	private void schedule() {
+		if (scheduled) return;
+		scheduled = true;
+		if (gridView != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			gridView.postOnAnimation(pass);
+		} else {
+			handler.postDelayed(pass, FRAME_DELAY_MS);
+		}
+	}
+	
+	/*
+	 * Drop any pending pass, e.g. when the fragment goes away.
+	 */
+	public void cancel() {
+		handler.removeCallbacks(pass);
+		if (gridView != null) {
+			gridView.removeCallbacks(pass);
+		}
+		scheduled = false;
+		changedSongs.clear();
+		layoutChanged = false;
+	}
+	
+	private void apply() {
+		if (adapter == null) return;
+		passCount++;
+		if (layoutChanged || gridView == null) {
+			// Row heights need recomputing, so lay out the whole grid
+			adapter.notifyDataSetChanged();
+		} else {
+			// Bind just the visible cells whose song changed. Cells off
+			// screen pick up the change when they are next bound.
+			int first = gridView.getFirstVisiblePosition();
+			int count = Math.min(gridView.getChildCount(), adapter.getCount() - first);
+			for (int i = 0; i < count; i++) {
+				int position = first + i;
+				if (changedSongs.contains(adapter.getItem(position))) {
+					View cell = gridView.getChildAt(i);
+					adapter.getView(position, cell, gridView);
+					rebindCount++;
+				}
+			}
+		}
+		changedSongs.clear();
+		layoutChanged = false;
+	}
+	
+	/*
+	 * Number of song change notifications received.
+	 */
+	public int getNotificationCount() {
+		return notificationCount;
+	}
+	
+	/*
+	 * Number of times songs were added.
+	 */
+	public int getAppendCount() {
+		return appendCount;
+	}
+	
+	/*
+	 * Number of passes the notifications were coalesced into.
+	 */
+	public int getPassCount() {
+		return passCount;
+	}
+	
+	/*
+	 * Number of cells bound again without a full data set change.
+	 */
+	public int getRebindCount() {
+		return rebindCount;
+	}
+	
+	@Override
+	public String toString() {
+		return "notifications=" + notificationCount + " appends=" + appendCount + " passes=" + passCount 
+				+ " rebinds=" + rebindCount;
+	}
+
+}
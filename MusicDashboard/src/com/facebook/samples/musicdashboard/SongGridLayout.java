@@ -0,0 +1,92 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.util.List;
+
+/*
+ * Row-height model for the song GridView. Every cell in a row is as tall
+ * as the tallest image in that row, scaled to the column width. Row
+ * aspect ratios are computed once per data set change from each Song's
+ * stored image size, so binding a cell is a single lookup.
+ */
+public class SongGridLayout {
+
+	private final List<Song> songs;
+	// Height over width for songs whose image size is not known yet
+	private final float placeholderAspectRatio;
+	
+	private int numColumns;
+	// Tallest height over width in each row
+	private float[] rowAspectRatios;
+	private boolean valid;
+	
+	public SongGridLayout(List<Song> songs, float placeholderAspectRatio) {
+		this.songs = songs;
+		this.placeholderAspectRatio = placeholderAspectRatio;
+	}
+	
+	/*
+	 * Mark the row heights as stale, e.g. when songs are added or an
+	 * image size becomes known. They are recomputed on next use.
+	 */
+	public void invalidate() {
+		valid = false;
+	}
+	
+	/*
+	 * Height of the row holding the cell at position, in pixels.
+	 */
+	public int getRowHeight(int position, int numColumns, int columnWidth) {
+		if (!valid || numColumns != this.numColumns) {
+			compute(numColumns);
+		}
+		int row = position / numColumns;
+		if (row >= rowAspectRatios.length) return 0;
+		return (int)(columnWidth * rowAspectRatios[row]);
+	}
+	
+	private void compute(int numColumns) {
+		this.numColumns = numColumns;
+		int count = songs.size();
+		int rows = (count + numColumns - 1) / numColumns;
+		if (rowAspectRatios == null || rowAspectRatios.length != rows) {
+			rowAspectRatios = new float[rows];
+		}
+		
+		for (int row = 0; row < rows; row++) {
+			float tallest = 0;
+			int end = Math.min((row + 1) * numColumns, count);
+			for (int cell = row * numColumns; cell < end; cell++) {
+				float aspectRatio = getAspectRatio(songs.get(cell));
+				if (aspectRatio > tallest) {
+					tallest = aspectRatio;
+				}
+			}
+			rowAspectRatios[row] = tallest;
+		}
+		valid = true;
+	}
+	
+	private float getAspectRatio(Song song) {
+		if (song.getImageWidth() <= 0 || song.getImageHeight() <= 0) {
+			return placeholderAspectRatio;
+		}
+		return (float)song.getImageHeight() / song.getImageWidth();
+	}
+
+}
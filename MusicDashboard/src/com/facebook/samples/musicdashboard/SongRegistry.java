@@ -0,0 +1,82 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.util.HashMap;
+
+/*
+ * Identity map of songs by ID. music.listens has one entry per play, so
+ * a song played many times is parsed many times; interning gives every
+ * listen of a song the same Song, which is resolved and decoded once.
+ */
+public class SongRegistry {
+
+	public static final String TAG = "SongRegistry";
+	
+	private final HashMap<String, Song> songs = new HashMap<String, Song>();
+	private int duplicateCount;
+	
+	/*
+	 * Return the shared Song for a parsed song's ID, registering the
+	 * parsed song if the ID is new. The shared Song keeps the newest
+	 * listen time.
+	 */
+	public synchronized Song intern(Song song) {
+		if (song.getId() == null) return song;
+		
+		Song shared = songs.get(song.getId());
+		if (shared == null) {
+			songs.put(song.getId(), song);
+			return song;
+		}
+		
+		duplicateCount++;
+		if (song.getListenTime() > shared.getListenTime()) {
+			shared.setListenTime(song.getListenTime());
+		}
+		return shared;
+	}
+	
+	/*
+	 * Number of unique songs registered.
+	 */
+	public synchronized int size() {
+		return songs.size();
+	}
+	
+	/*
+	 * Number of listens that reused an already registered song.
+	 */
+	public synchronized int getDuplicateCount() {
+		return duplicateCount;
+	}
+	
+	/*
+	 * Downloads avoided by interning, an info and an image fetch for
+	 * every duplicate listen.
+	 */
+	public synchronized int getSavedFetchCount() {
+		return duplicateCount * 2;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return TAG + "[songs=" + songs.size() + ", duplicates=" + duplicateCount 
+				+ ", savedFetches=" + getSavedFetchCount() + "]";
+	}
+
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/*
+ * On-device store of song details (image URL, description, site name,
+ * musician, audio URL and image size) keyed by song ID, so they survive
+ * process death and songs can be filled in without a network request.
+ * Also keeps the last song list shown, so it can be restored at startup
+ * before anything is fetched.
+ */
+public class SongStore extends SQLiteOpenHelper {
+
+	public static final String TAG = "SongStore";
+	
+	private static final String DATABASE_NAME = "songs.db";
+	private static final int DATABASE_VERSION = 3;
+	
+	private static final String TABLE_SONGS = "songs";
+	private static final String COLUMN_ID = "id";
+	private static final String COLUMN_IMAGE_URL = "image_url";
+	private static final String COLUMN_DESCRIPTION = "description";
+	private static final String COLUMN_SITE_NAME = "site_name";
+	private static final String COLUMN_MUSICIAN = "musician";
+	private static final String COLUMN_AUDIO_URL = "audio_url";
+	private static final String COLUMN_IMAGE_WIDTH = "image_width";
+	private static final String COLUMN_IMAGE_HEIGHT = "image_height";
+	
+	private static final String[] COLUMNS = { COLUMN_ID, COLUMN_IMAGE_URL, COLUMN_DESCRIPTION, 
+		COLUMN_SITE_NAME, COLUMN_MUSICIAN, COLUMN_AUDIO_URL, COLUMN_IMAGE_WIDTH, COLUMN_IMAGE_HEIGHT };
+	
+	// The song list in GridView order, one row per listen
+	private static final String TABLE_LISTENS = "listens";
+	private static final String COLUMN_POSITION = "position";
+	private static final String COLUMN_SONG_ID = "song_id";
+	private static final String COLUMN_URL = "url";
+	private static final String COLUMN_TITLE = "title";
+	private static final String COLUMN_LISTEN_TIME = "listen_time";
+	
+	private static final String[] LISTEN_COLUMNS = { COLUMN_SONG_ID, COLUMN_URL, COLUMN_TITLE, 
+		COLUMN_LISTEN_TIME };
+	
+	// Paging state saved along with the song list, and one-off migrations
+	// that have been done
+	private static final String TABLE_PROPERTIES = "properties";
+	private static final String COLUMN_KEY = "key";
+	private static final String COLUMN_VALUE = "value";
+	private static final String KEY_NEXT_PAGE_CURSOR = "next_page_cursor";
+	private static final String KEY_LEGACY_IMAGES_CLEARED = "legacy_images_cleared";
+	
+	// Stay well under SQLite's limit on bound query parameters
+	private static final int MAX_IDS_PER_QUERY = 500;
+	
+	private static SongStore instance;
+	
+	public static synchronized SongStore getInstance(Context context) {
+		if (instance == null) {
+			instance = new SongStore(context.getApplicationContext());
+		}
+		return instance;
+	}
+	
+	private SongStore(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+	
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_SONGS + " ("
+				+ COLUMN_ID + " TEXT PRIMARY KEY, "
+				+ COLUMN_IMAGE_URL + " TEXT NOT NULL, "
+				+ COLUMN_DESCRIPTION + " TEXT, "
+				+ COLUMN_SITE_NAME + " TEXT, "
+				+ COLUMN_MUSICIAN + " TEXT, "
+				+ COLUMN_AUDIO_URL + " TEXT, "
+				+ COLUMN_IMAGE_WIDTH + " INTEGER, "
+				+ COLUMN_IMAGE_HEIGHT + " INTEGER)");
+		db.execSQL("CREATE TABLE " + TABLE_LISTENS + " ("
+				+ COLUMN_POSITION + " INTEGER PRIMARY KEY, "
+				+ COLUMN_SONG_ID + " TEXT NOT NULL, "
+				+ COLUMN_URL + " TEXT, "
+				+ COLUMN_TITLE + " TEXT, "
+				+ COLUMN_LISTEN_TIME + " INTEGER)");
+		db.execSQL("CREATE TABLE " + TABLE_PROPERTIES + " ("
+				+ COLUMN_KEY + " TEXT PRIMARY KEY, "
+				+ COLUMN_VALUE + " TEXT)");
+	}
+	
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// Everything here can be fetched again, so just start over
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_LISTENS);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_PROPERTIES);
+		onCreate(db);
+	}
+	
+	/*
+	 * Fill in stored details for songs that do not have them yet.
+	 * Returns the songs that are still missing details.
+	 */
+	public List<Song> loadSongInfo(List<Song> songs) {
+		HashMap<String, List<Song>> pending = new HashMap<String, List<Song>>();
+		for (Song song : songs) {
+			if (song.getImageUrl() != null || song.getId() == null) continue;
+			List<Song> songsForId = pending.get(song.getId());
+			if (songsForId == null) {
+				songsForId = new ArrayList<Song>();
+				pending.put(song.getId(), songsForId);
+			}
+			songsForId.add(song);
+		}
+		if (pending.isEmpty()) return new ArrayList<Song>();
+		
+		try {
+			SQLiteDatabase db = getReadableDatabase();
+			ArrayList<String> ids = new ArrayList<String>(pending.keySet());
+			for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+				List<String> chunk = ids.subList(start, Math.min(start + MAX_IDS_PER_QUERY, ids.size()));
+				StringBuilder selection = new StringBuilder(COLUMN_ID + " IN (");
+				for (int i = 0; i < chunk.size(); i++) {
+					selection.append(i == 0 ? "?" : ",?");
+				}
+				selection.append(")");
+				
+				Cursor cursor = db.query(TABLE_SONGS, COLUMNS, selection.toString(), 
+						chunk.toArray(new String[chunk.size()]), null, null, null);
+				try {
+					while (cursor.moveToNext()) {
+						List<Song> songsForId = pending.remove(cursor.getString(0));
+						if (songsForId == null) continue;
+						for (Song song : songsForId) {
+							song.setImageUrl(cursor.getString(1));
+							song.setDescription(cursor.getString(2));
+							song.setSiteName(cursor.getString(3));
+							song.setMusician(cursor.getString(4));
+							song.setAudioUrl(cursor.getString(5));
+							song.setImageSize(cursor.getInt(6), cursor.getInt(7));
+						}
+					}
+				} finally {
+					cursor.close();
+				}
+			}
+		} catch (SQLException e) {
+			Log.i(TAG, "Could not load song info", e);
+		}
+		
+		ArrayList<Song> missing = new ArrayList<Song>();
+		for (List<Song> songsForId : pending.values()) {
+			missing.addAll(songsForId);
+		}
+		return missing;
+	}
+	
+	/*
+	 * Store the details of songs that have them.
+	 */
+	public void saveSongInfo(List<Song> songs) {
+		try {
+			SQLiteDatabase db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				ContentValues values = new ContentValues();
+				for (Song song : songs) {
+					if (song.getImageUrl() == null || song.getId() == null) continue;
+					values.clear();
+					values.put(COLUMN_ID, song.getId());
+					values.put(COLUMN_IMAGE_URL, song.getImageUrl());
+					values.put(COLUMN_DESCRIPTION, song.getDescription());
+					values.put(COLUMN_SITE_NAME, song.getSiteName());
+					values.put(COLUMN_MUSICIAN, song.getMusician());
+					values.put(COLUMN_AUDIO_URL, song.getAudioUrl());
+					values.put(COLUMN_IMAGE_WIDTH, song.getImageWidth());
+					values.put(COLUMN_IMAGE_HEIGHT, song.getImageHeight());
+					db.replace(TABLE_SONGS, null, values);
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} catch (SQLException e) {
+			Log.i(TAG, "Could not save song info", e);
+		}
+	}
+	
+	/*
+	 * The song list saved by saveListens, in order, with stored details
+	 * filled in. Empty if there is none.
+	 */
+	public ArrayList<Song> loadListens() {
+		ArrayList<Song> songs = new ArrayList<Song>();
+		try {
+			Cursor cursor = getReadableDatabase().query(TABLE_LISTENS, LISTEN_COLUMNS, 
+					null, null, null, null, COLUMN_POSITION);
+			try {
+				while (cursor.moveToNext()) {
+					Song song = new Song(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+					song.setListenTime(cursor.getLong(3));
+					songs.add(song);
+				}
+			} finally {
+				cursor.close();
+			}
+		} catch (SQLException e) {
+			Log.i(TAG, "Could not load song list", e);
+			return new ArrayList<Song>();
+		}
+		loadSongInfo(songs);
+		return songs;
+	}
+	
+	/*
+	 * The paging cursor of the page after the saved song list, from
+	 * MusicFetcher.getPageCursor, or null if there are no more pages.
+	 */
+	public String loadListensNextPageCursor() {
+		try {
+			return loadProperty(KEY_NEXT_PAGE_CURSOR);
+		} catch (SQLException e) {
+			Log.i(TAG, "Could not load song list paging", e);
+			return null;
+		}
+	}
+	
+	/*
+	 * Whether the image files of older versions have been cleared.
+	 */
+	public boolean isLegacyImagesCleared() {
+		try {
+			return loadProperty(KEY_LEGACY_IMAGES_CLEARED) != null;
+		} catch (SQLException e) {
+			Log.i(TAG, "Could not load migration state", e);
+			return false;
+		}
+	}
+	
+	/*
+	 * Record that the image files of older versions have been cleared.
+	 */
+	public void setLegacyImagesCleared() {
+		try {
+			ContentValues values = new ContentValues();
+			values.put(COLUMN_KEY, KEY_LEGACY_IMAGES_CLEARED);
+			values.put(COLUMN_VALUE, "1");
+			getWritableDatabase().replace(TABLE_PROPERTIES, null, values);
+		} catch (SQLException e) {
+			Log.i(TAG, "Could not save migration state", e);
+		}
+	}
+	
+	private String loadProperty(String key) {
+		Cursor cursor = getReadableDatabase().query(TABLE_PROPERTIES, new String[] { COLUMN_VALUE }, 
+				COLUMN_KEY + " = ?", new String[] { key }, null, null, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getString(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/*
+	 * Replace the saved song list and the cursor of the page after it.
+	 * The cursor holds no access token, so none is kept on disk.
+	 * Song details are saved separately by saveSongInfo.
+	 */
+	public void saveListens(List<Song> songs, String nextPageCursor) {
+		try {
+			SQLiteDatabase db = getWritableDatabase();
+			db.beginTransaction();
+			try {
+				db.delete(TABLE_LISTENS, null, null);
+				ContentValues values = new ContentValues();
+				int position = 0;
+				for (Song song : songs) {
+					if (song.getId() == null) continue;
+					values.clear();
+					values.put(COLUMN_POSITION, position++);
+					values.put(COLUMN_SONG_ID, song.getId());
+					values.put(COLUMN_URL, song.getUrl());
+					values.put(COLUMN_TITLE, song.getTitle());
+					values.put(COLUMN_LISTEN_TIME, song.getListenTime());
+					db.insert(TABLE_LISTENS, null, values);
+				}
+				values.clear();
+				values.put(COLUMN_KEY, KEY_NEXT_PAGE_CURSOR);
+				values.put(COLUMN_VALUE, nextPageCursor);
+				db.replace(TABLE_PROPERTIES, null, values);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} catch (SQLException e) {
+			Log.i(TAG, "Could not save song list", e);
+		}
+	}
+	
+	/*
+	 * Forget the saved song list, e.g. when the user logs out.
+	 */
+	public void clearListens() {
+		try {
+			SQLiteDatabase db = getWritableDatabase();
+			db.delete(TABLE_LISTENS, null, null);
+			db.delete(TABLE_PROPERTIES, COLUMN_KEY + " = ?", new String[] { KEY_NEXT_PAGE_CURSOR });
+		} catch (SQLException e) {
+			Log.i(TAG, "Could not clear song list", e);
+		}
+	}
+
+}
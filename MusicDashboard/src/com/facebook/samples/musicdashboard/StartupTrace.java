@@ -0,0 +1,74 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Times the phases of startup, from the launcher activity to the first
+ * songs from the network, and logs them on one line when startup ends.
+ * Only used on the main thread.
+ */
+public class StartupTrace {
+
+	public static final String TAG = "StartupTrace";
+	
+	private static long startTime = -1;
+	private static long lastTime;
+	private static StringBuilder phases = new StringBuilder();
+	
+	/*
+	 * Start timing, dropping any startup still being timed.
+	 */
+	public static void begin() {
+		startTime = SystemClock.uptimeMillis();
+		lastTime = startTime;
+		phases.setLength(0);
+	}
+	
+	/*
+	 * Whether a startup is being timed.
+	 */
+	public static boolean isRunning() {
+		return startTime >= 0;
+	}
+	
+	/*
+	 * Record that a phase has finished, timed from the previous one.
+	 */
+	public static void mark(String phase) {
+		if (startTime < 0) return;
+		long now = SystemClock.uptimeMillis();
+		if (phases.length() > 0) {
+			phases.append(", ");
+		}
+		phases.append(phase).append('=').append(now - lastTime).append("ms");
+		lastTime = now;
+	}
+	
+	/*
+	 * Record the last phase and log the whole startup.
+	 */
+	public static void end(String phase) {
+		if (startTime < 0) return;
+		mark(phase);
+		Log.i(TAG, "Startup took " + (lastTime - startTime) + "ms: " + phases);
+		startTime = -1;
+	}
+
+}
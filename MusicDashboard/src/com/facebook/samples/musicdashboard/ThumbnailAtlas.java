@@ -0,0 +1,459 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/*
+ * Size-bounded least recently used store of encoded thumbnails, packed
+ * into one append-only data file with an append-only index of where each
+ * key's bytes are. The data file is memory-mapped, so reading a thumbnail
+ * is a lookup and a slice rather than a file open. Replaced and evicted
+ * thumbnails leave dead bytes behind until the store is compacted.
+ * Appends are not forced to disk: the index is checked against the data
+ * file when it is read back, and only a compaction, which replaces both
+ * files, forces them first.
+ */
+public class ThumbnailAtlas {
+
+	public static final String TAG = "ThumbnailAtlas";
+	
+	private static final String DATA_FILE = "thumbnails.dat";
+	private static final String INDEX_FILE = "thumbnails.idx";
+	// Suffix for files being written by a compaction
+	private static final String COMPACT_SUFFIX = ".compact";
+	
+	// Both files start with the same generation, which a compaction
+	// changes, so an index is never read against another data file
+	private static final int HEADER_LENGTH = 8;
+	
+	// The data file is grown ahead of what is written to it, doubling
+	// from this size, so that it is remapped only a few times as it fills
+	private static final long MIN_MAP_BYTES = 256 * 1024;
+	
+	// Index record types
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+	
+	// Compact once dead bytes outweigh live ones, and there are enough
+	// of them to be worth rewriting the file
+	private static final long COMPACT_MIN_DEAD_BYTES = 512 * 1024;
+	
+	/*
+	 * Where a key's thumbnail is in the data file, and the size of the
+	 * image it was made from.
+	 */
+	public static class Entry {
+		final long offset;
+		final int length;
+		public final int width;
+		public final int height;
+		
+		Entry(long offset, int length, int width, int height) {
+			this.offset = offset;
+			this.length = length;
+			this.width = width;
+			this.height = height;
+		}
+	}
+	
+	private final File directory;
+	private final long maxBytes;
+	
+	private RandomAccessFile data;
+	private RandomAccessFile index;
+	// Read-only mapping of the whole data file, remapped as it grows
+	private MappedByteBuffer map;
+	private long mappedLength;
+	// End of the data written, where the next thumbnail goes
+	private long dataLength;
+	private long liveBytes;
+	
+	// Stored keys, least recently used first. Index replay keeps them
+	// in the order they were stored, and compaction in use order.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	
+	private int hitCount;
+	private int missCount;
+	private int evictionCount;
+	private int compactionCount;
+	
+	public ThumbnailAtlas(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		directory.mkdirs();
+		
+		// Image downloads interrupted before reaching the atlas
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(DiskCache.TEMP_SUFFIX)) {
+					file.delete();
+				}
+			}
+		}
+		
+		try {
+			open();
+			trimToSize();
+		} catch (IOException e) {
+			// Start again from nothing rather than run without a store
+			Log.i(TAG, "Could not open thumbnail atlas, clearing it", e);
+			close();
+			new File(directory, DATA_FILE).delete();
+			new File(directory, INDEX_FILE).delete();
+			entries.clear();
+			liveBytes = 0;
+			try {
+				open();
+			} catch (IOException e2) {
+				Log.i(TAG, "Could not create thumbnail atlas", e2);
+				close();
+			}
+		}
+	}
+	
+	/*
+	 * Open both files and rebuild the entries from the index. A record
+	 * cut short by a crash, and anything after it, is dropped.
+	 */
+	private void open() throws IOException {
+		// A compaction that did not finish left the old files intact
+		new File(directory, DATA_FILE + COMPACT_SUFFIX).delete();
+		new File(directory, INDEX_FILE + COMPACT_SUFFIX).delete();
+		
+		data = new RandomAccessFile(new File(directory, DATA_FILE), "rw");
+		index = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+		long generation = data.length() >= HEADER_LENGTH ? data.readLong() : 0;
+		if (generation == 0 || index.length() < HEADER_LENGTH || index.readLong() != generation) {
+			// New, or left mismatched by a compaction that did not finish
+			generation = newGeneration();
+			data.setLength(0);
+			data.writeLong(generation);
+			index.setLength(0);
+			index.writeLong(generation);
+		}
+		long fileLength = data.length();
+		dataLength = HEADER_LENGTH;
+		
+		long validLength = HEADER_LENGTH;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(new File(directory, INDEX_FILE))));
+		try {
+			in.readLong();
+			while (true) {
+				byte type = in.readByte();
+				String key = in.readUTF();
+				if (type == RECORD_PUT) {
+					Entry entry = new Entry(in.readLong(), in.readInt(), in.readInt(), in.readInt());
+					if (entry.offset < HEADER_LENGTH || entry.length < 0 
+							|| entry.offset + entry.length > fileLength) break;
+					putEntry(key, entry);
+					dataLength = Math.max(dataLength, entry.offset + entry.length);
+				} else if (type == RECORD_REMOVE) {
+					removeEntry(key);
+				} else {
+					break;
+				}
+				validLength += recordLength(type, key);
+			}
+		} catch (EOFException e) {
+			// End of the index, possibly mid-record
+		} finally {
+			in.close();
+		}
+		if (index.length() > validLength) {
+			index.setLength(validLength);
+		}
+		index.seek(validLength);
+		mappedLength = fileLength;
+		remap();
+	}
+	
+	private static long newGeneration() {
+		long generation = System.currentTimeMillis() ^ System.nanoTime();
+		return generation != 0 ? generation : 1;
+	}
+	
+	/*
+	 * Bytes taken by an index record.
+	 */
+	private static int recordLength(byte type, String key) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(key);
+		return 1 + out.size() + (type == RECORD_PUT ? 8 + 4 + 4 + 4 : 0);
+	}
+	
+	private void close() {
+		try {
+			if (data != null) data.close();
+		} catch (IOException e) {
+			// ignored
+		}
+		try {
+			if (index != null) index.close();
+		} catch (IOException e) {
+			// ignored
+		}
+		data = null;
+		index = null;
+		map = null;
+		mappedLength = 0;
+		dataLength = 0;
+	}
+	
+	private void remap() throws IOException {
+		map = data.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mappedLength);
+	}
+	
+	/*
+	 * Grow the data file, and its mapping, to hold at least length bytes.
+	 */
+	private void ensureCapacity(long length) throws IOException {
+		if (length <= mappedLength) return;
+		mappedLength = Math.max(length, Math.max(mappedLength * 2, MIN_MAP_BYTES));
+		data.setLength(mappedLength);
+		remap();
+	}
+	
+	/*
+	 * The thumbnail stored for a key, as a read-only buffer over the
+	 * mapped data file, or null if it is not stored.
+	 */
+	public synchronized ByteBuffer get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null || map == null) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		ByteBuffer buffer = map.duplicate();
+		buffer.position((int)entry.offset);
+		buffer.limit((int)(entry.offset + entry.length));
+		return buffer.slice();
+	}
+	
+	/*
+	 * The entry stored for a key, or null if it is not stored.
+	 */
+	public synchronized Entry getEntry(String key) {
+		return entries.get(key);
+	}
+	
+	/*
+	 * Whether a thumbnail is stored for a key.
+	 */
+	public synchronized boolean contains(String key) {
+		return entries.containsKey(key);
+	}
+	
+	/*
+	 * Append a key's thumbnail, replacing any stored before, along with
+	 * the size of the image it was made from. Evicts the least recently
+	 * used thumbnails if the store is now over its size limit.
+	 */
+	public synchronized boolean put(String key, byte[] bytes, int width, int height) {
+		if (data == null) return false;
+		try {
+			Entry entry = new Entry(dataLength, bytes.length, width, height);
+			ensureCapacity(dataLength + bytes.length);
+			data.getChannel().write(ByteBuffer.wrap(bytes), dataLength);
+			dataLength += bytes.length;
+			writeRecord(RECORD_PUT, key, entry);
+			putEntry(key, entry);
+			trimToSize();
+			compactIfNeeded();
+			return true;
+		} catch (IOException e) {
+			Log.i(TAG, "Could not store thumbnail: " + key, e);
+			return false;
+		}
+	}
+	
+	/*
+	 * Remove a key's thumbnail, e.g. because it could not be decoded.
+	 */
+	public synchronized void remove(String key) {
+		if (data == null || !entries.containsKey(key)) return;
+		try {
+			writeRecord(RECORD_REMOVE, key, null);
+			removeEntry(key);
+			compactIfNeeded();
+		} catch (IOException e) {
+			Log.i(TAG, "Could not remove thumbnail: " + key, e);
+		}
+	}
+	
+	private void writeRecord(byte type, String key, Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeUTF(key);
+		if (entry != null) {
+			out.writeLong(entry.offset);
+			out.writeInt(entry.length);
+			out.writeInt(entry.width);
+			out.writeInt(entry.height);
+		}
+		index.write(bytes.toByteArray());
+	}
+	
+	private void putEntry(String key, Entry entry) {
+		Entry previous = entries.put(key, entry);
+		liveBytes += entry.length - (previous != null ? previous.length : 0);
+	}
+	
+	private void removeEntry(String key) {
+		Entry previous = entries.remove(key);
+		if (previous != null) {
+			liveBytes -= previous.length;
+		}
+	}
+	
+	private void trimToSize() throws IOException {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (liveBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			writeRecord(RECORD_REMOVE, eldest.getKey(), null);
+			liveBytes -= eldest.getValue().length;
+			it.remove();
+			evictionCount++;
+		}
+	}
+	
+	private void compactIfNeeded() {
+		long deadBytes = dataLength - HEADER_LENGTH - liveBytes;
+		if (deadBytes <= liveBytes || deadBytes < COMPACT_MIN_DEAD_BYTES) return;
+		try {
+			compact();
+		} catch (IOException e) {
+			// Carry on appending to the old files if they are still open
+			Log.i(TAG, "Could not compact thumbnail atlas", e);
+		}
+	}
+	
+	/*
+	 * Rewrite the store with only the live thumbnails, least recently
+	 * used first. Buffers already handed out by get() stay readable,
+	 * since they map the old file.
+	 */
+	public synchronized void compact() throws IOException {
+		if (data == null) return;
+		
+		File compactData = new File(directory, DATA_FILE + COMPACT_SUFFIX);
+		File compactIndex = new File(directory, INDEX_FILE + COMPACT_SUFFIX);
+		RandomAccessFile newData = new RandomAccessFile(compactData, "rw");
+		RandomAccessFile newIndex = new RandomAccessFile(compactIndex, "rw");
+		try {
+			long generation = newGeneration();
+			newData.setLength(0);
+			newData.writeLong(generation);
+			newIndex.setLength(0);
+			FileChannel from = data.getChannel();
+			FileChannel to = newData.getChannel();
+			long offset = HEADER_LENGTH;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(generation);
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				long copied = 0;
+				while (copied < entry.length) {
+					long n = from.transferTo(entry.offset + copied, entry.length - copied, to);
+					if (n <= 0) throw new EOFException("Thumbnail atlas is shorter than its index");
+					copied += n;
+				}
+				Entry movedEntry = new Entry(offset, entry.length, entry.width, entry.height);
+				out.writeByte(RECORD_PUT);
+				out.writeUTF(e.getKey());
+				out.writeLong(movedEntry.offset);
+				out.writeInt(movedEntry.length);
+				out.writeInt(movedEntry.width);
+				out.writeInt(movedEntry.height);
+				offset += entry.length;
+			}
+			newIndex.write(bytes.toByteArray());
+			to.force(false);
+			newIndex.getChannel().force(false);
+		} catch (IOException e) {
+			newData.close();
+			newIndex.close();
+			compactData.delete();
+			compactIndex.delete();
+			throw e;
+		}
+		newData.close();
+		newIndex.close();
+		
+		// If only one file is replaced the generations differ, and the
+		// store starts again empty
+		close();
+		boolean replaced = compactData.renameTo(new File(directory, DATA_FILE))
+				&& compactIndex.renameTo(new File(directory, INDEX_FILE));
+		entries.clear();
+		liveBytes = 0;
+		open();
+		if (!replaced) throw new IOException("Could not replace thumbnail atlas files");
+		compactionCount++;
+		Log.i(TAG, "Compacted to " + entries.size() + " thumbnails, " + dataLength + " bytes");
+	}
+	
+	public synchronized long size() {
+		return liveBytes;
+	}
+	
+	public long maxSize() {
+		return maxBytes;
+	}
+	
+	public synchronized int hitCount() {
+		return hitCount;
+	}
+	
+	public synchronized int missCount() {
+		return missCount;
+	}
+	
+	public synchronized int evictionCount() {
+		return evictionCount;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return TAG + "[size=" + liveBytes + "/" + maxBytes + ", data=" + dataLength 
+				+ ", thumbnails=" + entries.size() + ", hits=" + hitCount + ", misses=" + missCount 
+				+ ", evictions=" + evictionCount + ", compactions=" + compactionCount + "]";
+	}
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2004 - Present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.samples.musicdashboard;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/*
+ * Work queue that orders song downloads by where the songs sit relative
+ * to the GridView's visible range: visible cells first, then a prefetch
+ * window ahead of the scroll direction, then everything else by its
+ * distance from the screen. Work for cells that scrolled far away is
+ * demoted behind all of that.
+ * 
+ * Positions are stored as keys relative to the songs inserted at the
+ * head of the list, so an insertion shifts every pending task at once.
+ */
+public class ViewportScheduler implements Comparator<Runnable> {
+
+	// Screens of songs ahead of the scroll direction to prefetch
+	public static final int PREFETCH_SCREENS = 2;
+	// Score bands for visible, prefetch and remaining work
+	private static final long TIER = 1L << 32;
+	
+	/*
+	 * A download for songs at one or more GridView positions.
+	 */
+	public interface Task extends Runnable {
+		public int[] getPositionKeys();
+	}
+	
+	private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>(64, this);
+	// Replaced, never modified, so the comparator always sees one snapshot
+	private volatile Viewport viewport = new Viewport(0, 0, 1, 0);
+	
+	public BlockingQueue<Runnable> getQueue() {
+		return queue;
+	}
+	
+	/*
+	 * Re-rank pending work for a new visible range.
+	 */
+	public void setVisibleRange(int first, int last) {
+		Viewport old = viewport;
+		if (first == old.first && last == old.last) return;
+		int direction = first > old.first ? 1 : (first < old.first ? -1 : old.direction);
+		viewport = new Viewport(first, last, direction, old.offset);
+		reprioritize();
+	}
+	
+	/*
+	 * Shift pending work down for songs inserted at the head of the list.
+	 */
+	public void addHeadInsertions(int count) {
+		Viewport old = viewport;
+		viewport = new Viewport(old.first, old.last, old.direction, old.offset + count);
+		reprioritize();
+	}
+	
+	private void reprioritize() {
+		ArrayList<Runnable> pending = new ArrayList<Runnable>(queue.size());
+		queue.drainTo(pending);
+		queue.addAll(pending);
+	}
+	
+	public int compare(Runnable a, Runnable b) {
+		Viewport v = viewport;
+		long scoreA = score(a, v);
+		long scoreB = score(b, v);
+		return scoreA < scoreB ? -1 : (scoreA > scoreB ? 1 : 0);
+	}
+	
+	private static long score(Runnable task, Viewport v) {
+		if (!(task instanceof Task)) return Long.MAX_VALUE;
+		long best = Long.MAX_VALUE;
+		for (int key : ((Task)task).getPositionKeys()) {
+			best = Math.min(best, v.score(key + v.offset));
+		}
+		return best;
+	}
+	
+	private static class Viewport {
+		final int first;
+		final int last;
+		final int direction;
+		final int offset;
+		
+		Viewport(int first, int last, int direction, int offset) {
+			this.first = first;
+			this.last = last;
+			this.direction = direction;
+			this.offset = offset;
+		}
+		
+		/*
+		 * Lower scores run first.
+		 */
+		long score(int position) {
+			if (position >= first && position <= last) {
+				return position - first;
+			}
+			int distance = position < first ? first - position : position - last;
+			boolean ahead = direction >= 0 ? position > last : position < first;
+			int window = (last - first + 1) * PREFETCH_SCREENS;
+			if (ahead && distance <= window) {
+				return TIER + distance;
+			}
+			return 2 * TIER + distance;
+		}
+	}
+
+}